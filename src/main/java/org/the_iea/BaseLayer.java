@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * A static background which is the same for every frame of an animation.
+ * 
+ * The background is composited once at the output resolution, and each frame
+ * then starts as a straight copy of its pixels, rather than redrawing (and
+ * rescaling) the background images.
+ *
+ * @author Guy Griffiths
+ */
+public class BaseLayer {
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    /**
+     * @param composite
+     *            - The composited background. This is copied, so can be
+     *            discarded afterwards.
+     */
+    public BaseLayer(BufferedImage composite) {
+        width = composite.getWidth();
+        height = composite.getHeight();
+        BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(composite, 0, 0, null);
+        g.dispose();
+        pixels = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return A new {@link BufferedImage#TYPE_INT_ARGB} image containing the
+     *         background, ready to draw a frame onto
+     */
+    public BufferedImage newFrame() {
+        BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        System.arraycopy(pixels, 0, ((DataBufferInt) frame.getRaster().getDataBuffer()).getData(),
+                0, pixels.length);
+        return frame;
+    }
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import uk.ac.rdg.resc.edal.dataset.cdm.NetcdfDatasetAggregator;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+
+/**
+ * The good quality data points of a single variable from a single L2 file,
+ * each stored as the index of the grid cell it falls into (
+ * <code>y * xSize + x</code>) and its value.
+ *
+ * @author Guy Griffiths
+ */
+public class BinnedPoints {
+    int[] cells;
+    float[] values;
+    int size = 0;
+
+    BinnedPoints(int capacity) {
+        cells = new int[capacity];
+        values = new float[capacity];
+    }
+
+    /**
+     * Adds a point, growing the arrays if needed
+     * 
+     * @param cell
+     *            - The index of the grid cell of the point
+     * @param value
+     *            - The value of the point
+     */
+    void add(int cell, float value) {
+        if (size == cells.length) {
+            int capacity = Math.max(16, 2 * size);
+            cells = Arrays.copyOf(cells, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        cells[size] = cell;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Reads a single L2 file and bins all of the good quality data points of a
+     * variable into cells of a horizontal grid.
+     * 
+     * Data is considered good quality if the corresponding
+     * <code>&lt;variableId&gt;_quality_flag</code> variable is zero.
+     * 
+     * @param file
+     *            - The file to read
+     * @param variableId
+     *            - The ID of the variable to read
+     * @param horizontalGrid
+     *            - The grid to bin the data points onto
+     * @return The binned data points
+     */
+    public static BinnedPoints read(File file, String variableId,
+            HorizontalGrid horizontalGrid) {
+        return read(file, Collections.singletonList(variableId), horizontalGrid)[0];
+    }
+
+    /**
+     * Reads a single L2 file and bins all of the good quality data points of
+     * several variables into cells of a horizontal grid.
+     * 
+     * The positions are only read, and their grid cells only found, once for
+     * all of the variables. Data is considered good quality if the
+     * corresponding <code>&lt;variableId&gt;_quality_flag</code> variable is
+     * zero.
+     * 
+     * @param file
+     *            - The file to read
+     * @param variableIds
+     *            - The IDs of the variables to read
+     * @param horizontalGrid
+     *            - The grid to bin the data points onto
+     * @return The binned data points for each variable, in the same order as
+     *         <code>variableIds</code>
+     */
+    public static BinnedPoints[] read(File file, List<String> variableIds,
+            HorizontalGrid horizontalGrid) {
+        return read(file, variableIds, horizontalGrid, ChunkedVariableReader.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Reads a single L2 file and bins all of the good quality data points of
+     * several variables into cells of a horizontal grid.
+     * 
+     * The file is read in sections of a fixed size, so the memory needed does
+     * not depend on the size of the file, only on the number of good quality
+     * points in it.
+     * 
+     * @param file
+     *            - The file to read
+     * @param variableIds
+     *            - The IDs of the variables to read
+     * @param horizontalGrid
+     *            - The grid to bin the data points onto
+     * @param chunkSize
+     *            - The number of soundings to read at once
+     * @return The binned data points for each variable, in the same order as
+     *         <code>variableIds</code>
+     */
+    public static BinnedPoints[] read(File file, List<String> variableIds,
+            HorizontalGrid horizontalGrid, int chunkSize) {
+        GridIndexer indexer = new GridIndexer(horizontalGrid);
+        NetcdfDataset dataset = null;
+        try {
+            dataset = NetcdfDatasetAggregator.getDataset(file.getAbsolutePath());
+            /*
+             * Open datasets are shared between threads, and are not safe to
+             * read from concurrently, so all reads synchronise on the dataset
+             */
+            ChunkedVariableReader latReader = new ChunkedVariableReader(
+                    dataset.findVariable("latitude"), dataset);
+            ChunkedVariableReader lonReader = new ChunkedVariableReader(
+                    dataset.findVariable("longitude"), dataset);
+            int nVars = variableIds.size();
+            ChunkedVariableReader[] valReaders = new ChunkedVariableReader[nVars];
+            ChunkedVariableReader[] qReaders = new ChunkedVariableReader[nVars];
+            BinnedPoints[] ret = new BinnedPoints[nVars];
+            for (int v = 0; v < nVars; v++) {
+                String variableId = variableIds.get(v);
+                Variable var = dataset.findVariable(variableId);
+                Variable qVar = dataset.findVariable(variableId + "_quality_flag");
+                if (var == null || qVar == null) {
+                    throw new EdalException("Variable " + variableId
+                            + " or its quality flag not found in " + file.getName());
+                }
+                valReaders[v] = new ChunkedVariableReader(var, dataset);
+                qReaders[v] = new ChunkedVariableReader(qVar, dataset);
+                ret[v] = new BinnedPoints(16);
+            }
+
+            /*
+             * These are reused for every chunk
+             */
+            float[] latVals = new float[chunkSize];
+            float[] lonVals = new float[chunkSize];
+            int[] cells = new int[chunkSize];
+            float[] vals = new float[chunkSize];
+            byte[] qVals = new byte[chunkSize];
+
+            long n = latReader.getSize();
+            for (long start = 0; start < n;) {
+                /*
+                 * Find the grid cell of each position in this chunk
+                 */
+                int chunk = latReader.readFloats(start, latVals);
+                lonReader.readFloats(start, lonVals);
+                for (int i = 0; i < chunk; i++) {
+                    cells[i] = indexer.cellIndexOf(lonVals[i], latVals[i]);
+                }
+
+                for (int v = 0; v < nVars; v++) {
+                    valReaders[v].readFloats(start, vals);
+                    qReaders[v].readBytes(start, qVals);
+                    BinnedPoints points = ret[v];
+                    for (int i = 0; i < chunk; i++) {
+                        /*
+                         * If the data is good quality, add it with its grid
+                         * cell
+                         */
+                        if (qVals[i] == 0 && cells[i] >= 0 && !Float.isNaN(vals[i])) {
+                            points.add(cells[i], vals[i]);
+                        }
+                    }
+                }
+                start += chunk;
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new EdalException("Problem reading data", e);
+        } finally {
+            if (dataset != null) {
+                NetcdfDatasetAggregator.releaseDataset(dataset);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.io.IOException;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Variable;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+
+/**
+ * Reads a variable in fixed-size sections into reusable primitive buffers, so
+ * that the memory needed to read it does not depend on its size.
+ * 
+ * The variable is treated as a flat array in index order. For variables with
+ * more than one dimension, sections are whole rows of the first dimension, so
+ * buffers must be at least as big as one row.
+ *
+ * @author Guy Griffiths
+ */
+public class ChunkedVariableReader {
+    /**
+     * The default number of values to read in each section
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 18;
+
+    private final Variable var;
+    private final Object lock;
+    private final int[] shape;
+    private final long size;
+    private final int rowLength;
+
+    /**
+     * @param var
+     *            - The {@link Variable} to read
+     * @param lock
+     *            - An object to synchronise reads on. This should be the
+     *            dataset the variable belongs to if it is shared between
+     *            threads.
+     */
+    public ChunkedVariableReader(Variable var, Object lock) {
+        this.var = var;
+        this.lock = lock;
+        this.shape = var.getShape();
+        long size = 1;
+        int rowLength = 1;
+        for (int i = 0; i < shape.length; i++) {
+            size *= shape[i];
+            if (i > 0) {
+                rowLength *= shape[i];
+            }
+        }
+        this.size = size;
+        this.rowLength = rowLength;
+    }
+
+    /**
+     * @return The total number of values in the variable
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Reads a section of the variable as floats
+     * 
+     * @param start
+     *            - The flat index to start reading from. For multidimensional
+     *            variables this must be at the start of a row.
+     * @param buffer
+     *            - The buffer to read into. As much of this will be filled as
+     *            possible.
+     * @return The number of values read
+     */
+    public int readFloats(long start, float[] buffer) {
+        Array section = readSection(start, buffer.length);
+        int n = (int) section.getSize();
+        for (int i = 0; i < n; i++) {
+            buffer[i] = section.getFloat(i);
+        }
+        return n;
+    }
+
+    /**
+     * Reads a section of the variable as bytes
+     * 
+     * @param start
+     *            - The flat index to start reading from. For multidimensional
+     *            variables this must be at the start of a row.
+     * @param buffer
+     *            - The buffer to read into. As much of this will be filled as
+     *            possible.
+     * @return The number of values read
+     */
+    public int readBytes(long start, byte[] buffer) {
+        Array section = readSection(start, buffer.length);
+        int n = (int) section.getSize();
+        for (int i = 0; i < n; i++) {
+            buffer[i] = section.getByte(i);
+        }
+        return n;
+    }
+
+    private Array readSection(long start, int maxValues) {
+        if (start % rowLength != 0) {
+            throw new IllegalArgumentException("Sections must start at the beginning of a row");
+        }
+        int rows = maxValues / rowLength;
+        if (rows == 0) {
+            throw new IllegalArgumentException(
+                    "Buffer is too small to hold a row of " + var.getFullName());
+        }
+        int firstRow = (int) (start / rowLength);
+        int[] origin = new int[shape.length];
+        int[] sectionShape = shape.clone();
+        if (shape.length > 0) {
+            origin[0] = firstRow;
+            sectionShape[0] = Math.min(rows, shape[0] - firstRow);
+        }
+        try {
+            synchronized (lock) {
+                return var.read(origin, sectionShape);
+            }
+        } catch (IOException | InvalidRangeException e) {
+            throw new EdalException("Problem reading " + var.getFullName(), e);
+        }
+    }
+}
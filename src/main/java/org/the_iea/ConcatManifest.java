@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of frames, each shown for a whole number of output frames, which can
+ * be written as an ffmpeg concat demuxer script.
+ * 
+ * This means that frames which are shown for longer (e.g. while an annotation
+ * is displayed) only need to be written once, rather than once for every
+ * output frame. The resulting video has the same timing. It can be created
+ * with:
+ * 
+ * ffmpeg -f concat -safe 0 -i frames.ffconcat -vf fps=&lt;frameRate&gt; ...
+ * 
+ * This is not thread-safe. Frames should be added in order from a single
+ * thread.
+ *
+ * @author Guy Griffiths
+ */
+public class ConcatManifest {
+    private final int frameRate;
+    private final List<File> files = new ArrayList<>();
+    private final List<Integer> repeats = new ArrayList<>();
+    private int totalFrames = 0;
+
+    /**
+     * @param frameRate
+     *            - The frame rate of the final video, in frames per second
+     */
+    public ConcatManifest(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Adds a frame to the end of the manifest
+     * 
+     * @param file
+     *            - The image file of the frame
+     * @param repeats
+     *            - The number of output frames to show it for
+     */
+    public void add(File file, int repeats) {
+        files.add(file);
+        this.repeats.add(repeats);
+        totalFrames += repeats;
+    }
+
+    /**
+     * @return The total number of output frames in the video
+     */
+    public int getTotalFrames() {
+        return totalFrames;
+    }
+
+    /**
+     * Writes the manifest as an ffmpeg concat script. Files in the same
+     * directory as the manifest are written with relative paths.
+     * 
+     * @param manifestFile
+     *            - The file to write to
+     */
+    public void write(File manifestFile) throws IOException {
+        File dir = manifestFile.getAbsoluteFile().getParentFile();
+        try (PrintWriter writer = new PrintWriter(manifestFile, "UTF-8")) {
+            writer.println("ffconcat version 1.0");
+            for (int i = 0; i < files.size(); i++) {
+                writer.println("file " + quote(files.get(i), dir));
+                writer.println("duration " + (double) repeats.get(i) / frameRate);
+            }
+            /*
+             * ffmpeg ignores the duration of the last entry, so it needs to be
+             * listed again
+             */
+            if (!files.isEmpty()) {
+                writer.println("file " + quote(files.get(files.size() - 1), dir));
+            }
+        }
+    }
+
+    private static String quote(File file, File dir) {
+        File absFile = file.getAbsoluteFile();
+        String path = dir.equals(absFile.getParentFile()) ? absFile.getName()
+                : absFile.getPath();
+        return "'" + path.replace("'", "'\\''") + "'";
+    }
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * An overlay which is drawn over frames at varying opacity, e.g. to fade an
+ * annotation in and out.
+ * 
+ * The overlay is drawn once at full opacity, and only the rectangle which
+ * contains anything is kept. Drawing it onto a frame then only blends the
+ * pixels in that rectangle, so the cost depends on the size of the overlay,
+ * not the size of the frame.
+ * 
+ * Fading the overlay as a whole means that overlapping parts of it (e.g. text
+ * on a translucent box) are faded together, rather than each part being faded
+ * separately.
+ *
+ * @author Guy Griffiths
+ */
+public class FadeOverlay {
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    /*
+     * Non-premultiplied ARGB pixels of the dirty rectangle
+     */
+    private final int[] pixels;
+
+    /**
+     * @param layer
+     *            - A {@link BufferedImage#TYPE_INT_ARGB} image the same size as
+     *            the frames, transparent everywhere except where the overlay
+     *            has been drawn
+     */
+    public FadeOverlay(BufferedImage layer) {
+        int[] data = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+        int layerWidth = layer.getWidth();
+        int layerHeight = layer.getHeight();
+
+        /*
+         * Find the bounding box of everything which has been drawn
+         */
+        int minX = layerWidth;
+        int minY = layerHeight;
+        int maxX = -1;
+        int maxY = -1;
+        for (int j = 0; j < layerHeight; j++) {
+            for (int i = 0; i < layerWidth; i++) {
+                if ((data[j * layerWidth + i] >>> 24) != 0) {
+                    minX = Math.min(minX, i);
+                    maxX = Math.max(maxX, i);
+                    minY = Math.min(minY, j);
+                    maxY = Math.max(maxY, j);
+                }
+            }
+        }
+        x = maxX < 0 ? 0 : minX;
+        y = maxY < 0 ? 0 : minY;
+        width = maxX - x + 1;
+        height = maxY - y + 1;
+
+        pixels = new int[width * height];
+        for (int j = 0; j < height; j++) {
+            System.arraycopy(data, (y + j) * layerWidth + x, pixels, j * width, width);
+        }
+    }
+
+    /**
+     * Blends the overlay onto a frame
+     * 
+     * @param frame
+     *            - The {@link BufferedImage#TYPE_INT_ARGB} frame to draw onto.
+     *            This must be the same size as the layer the overlay was
+     *            created from.
+     * @param opacity
+     *            - The opacity to draw the overlay at, from 0 to 1
+     */
+    public void drawOnto(BufferedImage frame, float opacity) {
+        int[] data = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        int frameWidth = frame.getWidth();
+        int alphaScale = Math.round(Math.max(0f, Math.min(1f, opacity)) * 255);
+        if (alphaScale == 0) {
+            return;
+        }
+        for (int j = 0; j < height; j++) {
+            int src = j * width;
+            int dst = (y + j) * frameWidth + x;
+            for (int i = 0; i < width; i++, src++, dst++) {
+                int s = pixels[src];
+                int sa = ((s >>> 24) * alphaScale + 127) / 255;
+                if (sa == 0) {
+                    continue;
+                }
+                int d = data[dst];
+                int da = d >>> 24;
+                /*
+                 * Source-over for non-premultiplied colours
+                 */
+                int dWeight = (da * (255 - sa) + 127) / 255;
+                int oa = sa + dWeight;
+                int r = (((s >> 16) & 0xff) * sa + ((d >> 16) & 0xff) * dWeight + oa / 2) / oa;
+                int g = (((s >> 8) & 0xff) * sa + ((d >> 8) & 0xff) * dWeight + oa / 2) / oa;
+                int b = ((s & 0xff) * sa + (d & 0xff) * dWeight + oa / 2) / oa;
+                data[dst] = (oa << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
+
+/**
+ * A cached list of the files matching a glob expression, along with the date
+ * of each file (parsed from its name) and the metadata of the variables
+ * within them.
+ * 
+ * The manifest is stored in the top-level directory of the glob expression.
+ * When it is loaded, the glob expression is expanded again and the size and
+ * modification time of every file is checked against the manifest. Only new
+ * or changed files have their dates parsed, and the variable metadata is only
+ * read again if the first file has changed.
+ *
+ * @author Guy Griffiths
+ */
+public class FileManifest {
+    private static final String HEADER = "# s4c-viz file manifest v2";
+    private static final Pattern DATE_PATTERN = Pattern.compile(".*(\\d{8}).*");
+    private static final String NULL = "\\0";
+
+    private final String location;
+    private final File manifestFile;
+    /*
+     * Files keyed by path, in sorted order once scanned
+     */
+    private final Map<String, FileEntry> files = new LinkedHashMap<>();
+    private final Map<String, Parameter> parameters = new LinkedHashMap<>();
+    private boolean changed = false;
+
+    private static class FileEntry {
+        final String path;
+        final long size;
+        final long modified;
+        /*
+         * Date in ms since the epoch, or null if it could not be parsed
+         */
+        final Long date;
+
+        FileEntry(String path, long size, long modified, Long date) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.date = date;
+        }
+    }
+
+    private FileManifest(String location, File manifestFile) {
+        this.location = location;
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * Loads the manifest for a glob expression, bringing it up-to-date with
+     * the files on disk. If the manifest has changed, it is saved.
+     * 
+     * @param location
+     *            - The glob expression for the files. This may contain
+     *            <code>*</code>, <code>?</code> and <code>**</code> (which
+     *            matches zero or more directories).
+     * @return The {@link FileManifest}
+     */
+    public static FileManifest load(String location) {
+        String absLocation = new File(location).getAbsolutePath();
+        File root = getRoot(absLocation);
+        File manifestFile = new File(root,
+                ".s4c-manifest-" + Integer.toHexString(absLocation.hashCode()));
+
+        FileManifest old = new FileManifest(absLocation, manifestFile);
+        if (manifestFile.exists()) {
+            try {
+                old.read();
+            } catch (IOException | RuntimeException e) {
+                /*
+                 * Corrupt or from an older version. Just rebuild it.
+                 */
+                old = new FileManifest(absLocation, manifestFile);
+            }
+        }
+
+        FileManifest manifest = new FileManifest(absLocation, manifestFile);
+        List<File> found = CdmUtils.expandGlobExpression(absLocation);
+        /*
+         * Sort them alphabetically, which will correspond to time order
+         */
+        Collections.sort(found);
+        for (File file : found) {
+            String path = file.getPath();
+            long size = file.length();
+            long modified = file.lastModified();
+            FileEntry oldEntry = old.files.get(path);
+            if (oldEntry != null && oldEntry.size == size && oldEntry.modified == modified) {
+                manifest.files.put(path, oldEntry);
+            } else {
+                manifest.files.put(path, new FileEntry(path, size, modified, parseDate(file)));
+                manifest.changed = true;
+            }
+        }
+
+        /*
+         * Variable metadata is read from the first file, so is only still
+         * valid if that hasn't changed
+         */
+        if (!manifest.files.isEmpty() && !old.files.isEmpty()) {
+            FileEntry first = manifest.files.values().iterator().next();
+            FileEntry oldFirst = old.files.values().iterator().next();
+            if (first.path.equals(oldFirst.path) && first.size == oldFirst.size
+                    && first.modified == oldFirst.modified) {
+                manifest.parameters.putAll(old.parameters);
+            }
+        }
+
+        manifest.changed |= !manifest.files.keySet().equals(old.files.keySet())
+                || !manifest.parameters.keySet().equals(old.parameters.keySet());
+        if (manifest.changed) {
+            manifest.save();
+        }
+        return manifest;
+    }
+
+    /**
+     * Finds the deepest directory of a glob expression which contains no
+     * wildcards
+     */
+    private static File getRoot(String location) {
+        int firstWildcard = location.length();
+        for (char c : new char[] { '*', '?', '[', '{' }) {
+            int i = location.indexOf(c);
+            if (i >= 0) {
+                firstWildcard = Math.min(firstWildcard, i);
+            }
+        }
+        return new File(location.substring(0, location.lastIndexOf('/', firstWildcard) + 1));
+    }
+
+    private static Long parseDate(File file) {
+        Matcher m = DATE_PATTERN.matcher(file.getName());
+        if (m.matches()) {
+            String dateStr = m.group(1);
+            return new DateTime(Integer.parseInt(dateStr.substring(0, 4)),
+                    Integer.parseInt(dateStr.substring(4, 6)),
+                    Integer.parseInt(dateStr.substring(6, 8)), 0, 0, 0,
+                    ISOChronology.getInstanceUTC()).getMillis();
+        }
+        return null;
+    }
+
+    /**
+     * @return All of the files matching the glob expression, sorted
+     *         alphabetically
+     */
+    public List<File> getFiles() {
+        List<File> ret = new ArrayList<>();
+        for (String path : files.keySet()) {
+            ret.add(new File(path));
+        }
+        return ret;
+    }
+
+    /**
+     * @param file
+     *            - One of the files in this manifest
+     * @return The date in the name of the file, or <code>null</code> if it
+     *         does not contain one
+     */
+    public DateTime getDate(File file) {
+        FileEntry entry = files.get(file.getPath());
+        if (entry == null || entry.date == null) {
+            return null;
+        }
+        return new DateTime(entry.date, ISOChronology.getInstanceUTC());
+    }
+
+    /**
+     * @param variableId
+     *            - The ID of a variable
+     * @return The cached {@link Parameter} for the variable, or
+     *         <code>null</code> if it has not been stored
+     */
+    public Parameter getParameter(String variableId) {
+        return parameters.get(variableId);
+    }
+
+    /**
+     * Stores the {@link Parameter} for a variable. The manifest must be saved
+     * afterwards for this to be kept.
+     * 
+     * @param variableId
+     *            - The ID of the variable
+     * @param parameter
+     *            - The {@link Parameter} for the variable, as read from the
+     *            first file
+     */
+    public void putParameter(String variableId, Parameter parameter) {
+        parameters.put(variableId, parameter);
+        changed = true;
+    }
+
+    /**
+     * Saves the manifest if it has changed. If the directory is not writable,
+     * the manifest is just not saved.
+     */
+    public void save() {
+        if (!changed) {
+            return;
+        }
+        File tmpFile = new File(manifestFile.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(tmpFile, "UTF-8")) {
+            writer.println(HEADER);
+            writer.println("location\t" + escape(location));
+            for (FileEntry entry : files.values()) {
+                writer.println("file\t" + escape(entry.path) + "\t" + entry.size + "\t"
+                        + entry.modified + "\t" + (entry.date == null ? NULL : entry.date));
+            }
+            for (Map.Entry<String, Parameter> parameter : parameters.entrySet()) {
+                Parameter p = parameter.getValue();
+                writer.println("var\t" + escape(parameter.getKey()) + "\t"
+                        + escape(p.getVariableId()) + "\t" + escape(p.getTitle()) + "\t"
+                        + escape(p.getDescription()) + "\t" + escape(p.getUnits()) + "\t"
+                        + escape(p.getStandardName()));
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            return;
+        }
+        try {
+            Files.move(tmpFile.toPath(), manifestFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            changed = false;
+        } catch (IOException e) {
+            tmpFile.delete();
+        }
+    }
+
+    private void read() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifestFile), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a valid manifest");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                switch (parts[0]) {
+                case "location":
+                    if (!location.equals(unescape(parts[1]))) {
+                        throw new IOException("Manifest is for a different location");
+                    }
+                    break;
+                case "file":
+                    String path = unescape(parts[1]);
+                    files.put(path, new FileEntry(path, Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3]),
+                            NULL.equals(parts[4]) ? null : Long.parseLong(parts[4])));
+                    break;
+                case "var":
+                    parameters.put(unescape(parts[1]), new Parameter(unescape(parts[2]),
+                            unescape(parts[3]), unescape(parts[4]), unescape(parts[5]),
+                            unescape(parts[6])));
+                    break;
+                default:
+                    throw new IOException("Unknown manifest entry: " + parts[0]);
+                }
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return NULL;
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        if (NULL.equals(value)) {
+            return null;
+        }
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                ret.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                ret.append(c);
+            }
+        }
+        return ret.toString();
+    }
+}
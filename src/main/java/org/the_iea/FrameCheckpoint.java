@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Records which steps (e.g. time steps) of a frame-rendering run have been
+ * completely written, so that a run which stops part of the way through can be
+ * resumed without re-rendering everything.
+ * 
+ * The checkpoint is a text file which is only ever appended to. Each frame is
+ * recorded once it has been written, with the size and CRC-32 of its contents,
+ * and each step is recorded once all of its frames have been written. When a
+ * run is resumed, a step is only skipped if it was completed and all of its
+ * frame files are still present with the same contents.
+ * 
+ * Steps can be started from one thread and have their frames recorded from
+ * others.
+ *
+ * @author Guy Griffiths
+ */
+public class FrameCheckpoint implements Closeable {
+    private static final String HEADER = "# s4c-viz frame checkpoint v1";
+
+    private final File checkpointFile;
+    private final File dir;
+    private final PrintWriter writer;
+
+    /*
+     * Steps which were completed in a previous run, with their first frame
+     * number and frames
+     */
+    private final Map<String, Integer> completedFirstFrames = new HashMap<>();
+    private final Map<String, Map<Integer, FrameRecord>> completedFrames = new HashMap<>();
+
+    /**
+     * A frame which has been written
+     */
+    private static class FrameRecord {
+        final int repeats;
+        final long size;
+        final long crc;
+        final String[] files;
+
+        FrameRecord(int repeats, long size, long crc, String[] files) {
+            this.repeats = repeats;
+            this.size = size;
+            this.crc = crc;
+            this.files = files;
+        }
+    }
+
+    /**
+     * Opens a checkpoint, reading it if it already exists
+     * 
+     * @param checkpointFile
+     *            - The checkpoint file. Frame files in the same directory are
+     *            recorded relative to it.
+     */
+    public FrameCheckpoint(File checkpointFile) throws IOException {
+        this.checkpointFile = checkpointFile;
+        this.dir = checkpointFile.getAbsoluteFile().getParentFile();
+        boolean exists = checkpointFile.exists();
+        if (exists) {
+            read();
+        }
+        writer = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(checkpointFile, true), StandardCharsets.UTF_8));
+        if (!exists) {
+            writer.println(HEADER);
+            writer.flush();
+        }
+    }
+
+    private void read() throws IOException {
+        Map<String, Map<Integer, FrameRecord>> frames = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(checkpointFile), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException(checkpointFile + " is not a frame checkpoint");
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                try {
+                    if (parts[0].equals("frame") && parts.length >= 7) {
+                        String[] files = new String[parts.length - 6];
+                        System.arraycopy(parts, 6, files, 0, files.length);
+                        Map<Integer, FrameRecord> stepFrames = frames.get(parts[1]);
+                        if (stepFrames == null) {
+                            stepFrames = new TreeMap<>();
+                            frames.put(parts[1], stepFrames);
+                        }
+                        /*
+                         * Later records replace earlier ones if a step was
+                         * written more than once
+                         */
+                        stepFrames.put(Integer.parseInt(parts[2]),
+                                new FrameRecord(Integer.parseInt(parts[3]),
+                                        Long.parseLong(parts[4]), Long.parseLong(parts[5]),
+                                        files));
+                    } else if (parts[0].equals("step") && parts.length == 4) {
+                        String step = parts[1];
+                        int firstFrame = Integer.parseInt(parts[2]);
+                        int nFrames = Integer.parseInt(parts[3]);
+                        Map<Integer, FrameRecord> stepFrames = frames.get(step);
+                        if (stepFrames == null) {
+                            stepFrames = new TreeMap<>();
+                        }
+                        /*
+                         * Only keep the frames from this step's run
+                         */
+                        Map<Integer, FrameRecord> kept = new TreeMap<>();
+                        int frameNo = firstFrame;
+                        for (int i = 0; i < nFrames && stepFrames.containsKey(frameNo); i++) {
+                            FrameRecord frame = stepFrames.get(frameNo);
+                            kept.put(frameNo, frame);
+                            frameNo += frame.repeats;
+                        }
+                        if (kept.size() == nFrames) {
+                            completedFirstFrames.put(step, firstFrame);
+                            completedFrames.put(step, kept);
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    /*
+                     * A partly-written line from a run which was stopped.
+                     * Ignore it.
+                     */
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the frames of a step which was completed in a previous run, if all
+     * of its frame files are still intact
+     * 
+     * @param step
+     *            - The step
+     * @return A {@link FramePipeline.Frame} with no image for each frame of
+     *         the step, or <code>null</code> if the step needs to be rendered
+     */
+    public List<FramePipeline.Frame> getCompleted(String step) throws IOException {
+        Map<Integer, FrameRecord> frames;
+        synchronized (this) {
+            frames = completedFrames.get(step);
+        }
+        if (frames == null) {
+            return null;
+        }
+        List<FramePipeline.Frame> ret = new ArrayList<>();
+        for (FrameRecord frame : frames.values()) {
+            for (String file : frame.files) {
+                if (!verify(resolve(file), frame.size, frame.crc)) {
+                    return null;
+                }
+            }
+            ret.add(new FramePipeline.Frame(null, frame.repeats));
+        }
+        return ret;
+    }
+
+    /**
+     * @param step
+     *            - A step which was completed in a previous run
+     * @return The number of the first frame of the step, or -1 if it was not
+     *         completed
+     */
+    public synchronized int getFirstFrame(String step) {
+        Integer firstFrame = completedFirstFrames.get(step);
+        return firstFrame == null ? -1 : firstFrame;
+    }
+
+    /**
+     * Starts recording a step
+     * 
+     * @param step
+     *            - The step. This must not contain tabs or new lines.
+     * @param firstFrame
+     *            - The number of the first frame of the step
+     * @param nFrames
+     *            - The number of frames (not output frames) in the step
+     * @return A {@link Step}, which provides a {@link FrameSink.WriteListener}
+     *         for each frame
+     */
+    public Step startStep(String step, int firstFrame, int nFrames) {
+        if (nFrames == 0) {
+            completeStep(step, firstFrame, 0);
+        }
+        return new Step(step, firstFrame, nFrames);
+    }
+
+    /**
+     * A step which is being written. Once all of its frames have been written,
+     * the step is recorded as complete.
+     */
+    public class Step {
+        private final String step;
+        private final int firstFrame;
+        private final int nFrames;
+        private int written = 0;
+
+        private Step(String step, int firstFrame, int nFrames) {
+            this.step = step;
+            this.firstFrame = firstFrame;
+            this.nFrames = nFrames;
+        }
+
+        /**
+         * @param frameNo
+         *            - The number of the first output frame of a frame in this
+         *            step
+         * @param repeats
+         *            - The number of output frames it takes up
+         * @return A {@link FrameSink.WriteListener} to pass to the
+         *         {@link FrameSink} along with the frame
+         */
+        public FrameSink.WriteListener frame(final int frameNo, final int repeats) {
+            return new FrameSink.WriteListener() {
+                @Override
+                public void written(File[] files, long size, long crc) {
+                    recordFrame(step, frameNo, repeats, files, size, crc);
+                    boolean complete;
+                    synchronized (Step.this) {
+                        complete = ++written == nFrames;
+                    }
+                    if (complete) {
+                        completeStep(step, firstFrame, nFrames);
+                    }
+                }
+            };
+        }
+    }
+
+    private synchronized void recordFrame(String step, int frameNo, int repeats, File[] files,
+            long size, long crc) {
+        StringBuilder line = new StringBuilder(
+                "frame\t" + step + "\t" + frameNo + "\t" + repeats + "\t" + size + "\t" + crc);
+        for (File file : files) {
+            line.append("\t").append(relativise(file));
+        }
+        writer.println(line);
+        writer.flush();
+    }
+
+    private synchronized void completeStep(String step, int firstFrame, int nFrames) {
+        writer.println("step\t" + step + "\t" + firstFrame + "\t" + nFrames);
+        writer.flush();
+    }
+
+    /**
+     * Closes the checkpoint file
+     */
+    @Override
+    public synchronized void close() {
+        writer.close();
+    }
+
+    private String relativise(File file) {
+        File absFile = file.getAbsoluteFile();
+        return dir.equals(absFile.getParentFile()) ? absFile.getName() : absFile.getPath();
+    }
+
+    private File resolve(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(dir, path);
+    }
+
+    private static boolean verify(File file, long size, long crc) throws IOException {
+        if (!file.isFile() || file.length() != size) {
+            return false;
+        }
+        CRC32 fileCrc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                fileCrc.update(buffer, 0, n);
+            }
+        }
+        return fileCrc.getValue() == crc;
+    }
+}
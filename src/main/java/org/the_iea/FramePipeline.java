@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders the frames of an animation on several threads, and passes them on in
+ * order.
+ * 
+ * Each item (e.g. a time step) is rendered independently into any number of
+ * frames. Items are rendered concurrently, but their frames are handed to a
+ * {@link FrameWriter} on the calling thread in the order of the items, and
+ * frame numbers are assigned as they are written. This means that the number
+ * of frames produced for each item does not need to be known in advance.
+ * 
+ * The number of items which can be rendered but not yet written is limited, so
+ * the memory used does not grow if writing is slower than rendering.
+ * 
+ * Work which must be done in order (e.g. moving a sliding window through the
+ * data) can be done by an {@link ItemPreparer}. Items are prepared one at a
+ * time, in order, and each item is rendered once it has been prepared, so the
+ * rest of the rendering still runs in parallel.
+ *
+ * @author Guy Griffiths
+ */
+public class FramePipeline<T> {
+    private final int nThreads;
+    private final int maxPending;
+
+    /**
+     * Renders a single item into frames. Implementations must be safe to call
+     * from multiple threads at once.
+     */
+    public interface FrameRenderer<T> {
+        /**
+         * @param item
+         *            - The item to render
+         * @return The frames for this item, in order
+         */
+        public List<Frame> render(T item) throws Exception;
+    }
+
+    /**
+     * Prepares items for rendering. This is only ever called from a single
+     * thread, in the order of the items.
+     */
+    public interface ItemPreparer<T> {
+        /**
+         * @param item
+         *            - The item to prepare
+         */
+        public void prepare(T item) throws Exception;
+    }
+
+    /**
+     * Writes out frames. This is only ever called from the thread which runs
+     * the pipeline.
+     */
+    public interface FrameWriter<T> {
+        /**
+         * @param item
+         *            - The item which the frames were rendered for
+         * @param frameNo
+         *            - The number of the first output frame for this item
+         * @param frames
+         *            - The frames to write, in order. Each one takes up
+         *            {@link Frame#getRepeats()} output frames.
+         */
+        public void write(T item, int frameNo, List<Frame> frames) throws IOException;
+    }
+
+    /**
+     * A rendered image, to be shown for a number of consecutive output frames.
+     * 
+     * A frame with no image has already been written out (e.g. in a previous
+     * run), and only takes up its place in the frame numbering.
+     */
+    public static class Frame {
+        private final BufferedImage image;
+        private final int repeats;
+
+        /**
+         * @param image
+         *            - The rendered image, or <code>null</code> if it has
+         *            already been written
+         * @param repeats
+         *            - The number of consecutive output frames to show this
+         *            image for
+         */
+        public Frame(BufferedImage image, int repeats) {
+            this.image = image;
+            this.repeats = repeats;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        public int getRepeats() {
+            return repeats;
+        }
+    }
+
+    /**
+     * @param nThreads
+     *            - The number of threads to render on
+     */
+    public FramePipeline(int nThreads) {
+        this(nThreads, 2 * nThreads);
+    }
+
+    /**
+     * @param nThreads
+     *            - The number of threads to render on
+     * @param maxPending
+     *            - The maximum number of items which can be queued or
+     *            rendered, but not yet written
+     */
+    public FramePipeline(int nThreads, int maxPending) {
+        if (nThreads < 1 || maxPending < 1) {
+            throw new IllegalArgumentException("Must have at least one thread and pending item");
+        }
+        this.nThreads = nThreads;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Renders all of the items and writes their frames in order
+     * 
+     * @param items
+     *            - The items to render
+     * @param renderer
+     *            - The {@link FrameRenderer} to render each item with
+     * @param writer
+     *            - The {@link FrameWriter} to pass the frames to
+     * @return The total number of output frames written
+     * @throws IOException
+     *             If there is a problem rendering or writing any frame. No
+     *             further frames are written after this happens.
+     */
+    public int run(Iterable<T> items, final FrameRenderer<T> renderer, FrameWriter<T> writer)
+            throws IOException {
+        return run(items, renderer, writer, 0);
+    }
+
+    /**
+     * Renders all of the items and writes their frames in order, numbering
+     * the output frames from a given start. This allows part of a larger
+     * animation to be rendered on its own.
+     * 
+     * @param items
+     *            - The items to render
+     * @param renderer
+     *            - The {@link FrameRenderer} to render each item with
+     * @param writer
+     *            - The {@link FrameWriter} to pass the frames to
+     * @param firstFrame
+     *            - The output frame number of the first frame
+     * @return The total number of output frames written
+     * @throws IOException
+     *             If there is a problem rendering or writing any frame. No
+     *             further frames are written after this happens.
+     */
+    public int run(Iterable<T> items, final FrameRenderer<T> renderer, FrameWriter<T> writer,
+            int firstFrame) throws IOException {
+        return run(items, null, renderer, writer, firstFrame);
+    }
+
+    /**
+     * Prepares all of the items in order, renders them, and writes their
+     * frames in order, numbering the output frames from a given start.
+     * 
+     * @param items
+     *            - The items to render
+     * @param preparer
+     *            - The {@link ItemPreparer} to prepare each item with before
+     *            it is rendered, or <code>null</code> if none is needed
+     * @param renderer
+     *            - The {@link FrameRenderer} to render each item with
+     * @param writer
+     *            - The {@link FrameWriter} to pass the frames to
+     * @param firstFrame
+     *            - The output frame number of the first frame
+     * @return The total number of output frames written
+     * @throws IOException
+     *             If there is a problem preparing, rendering or writing any
+     *             frame. No further frames are written after this happens.
+     */
+    public int run(Iterable<T> items, final ItemPreparer<T> preparer,
+            final FrameRenderer<T> renderer, FrameWriter<T> writer, int firstFrame)
+            throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        ExecutorService prepareExecutor = preparer == null ? null
+                : Executors.newSingleThreadExecutor();
+        ArrayDeque<T> pendingItems = new ArrayDeque<>();
+        ArrayDeque<Future<List<Frame>>> pending = new ArrayDeque<>();
+        int frameNo = firstFrame;
+        try {
+            Iterator<T> iterator = items.iterator();
+            while (iterator.hasNext() || !pending.isEmpty()) {
+                /*
+                 * Keep the queue full, then write the frames of the oldest
+                 * item once it is ready
+                 */
+                while (iterator.hasNext() && pending.size() < maxPending) {
+                    final T item = iterator.next();
+                    pendingItems.add(item);
+                    final Future<Void> prepared = prepareExecutor == null ? null
+                            : prepareExecutor.submit(new Callable<Void>() {
+                                @Override
+                                public Void call() throws Exception {
+                                    preparer.prepare(item);
+                                    return null;
+                                }
+                            });
+                    pending.add(executor.submit(new Callable<List<Frame>>() {
+                        @Override
+                        public List<Frame> call() throws Exception {
+                            if (prepared != null) {
+                                try {
+                                    prepared.get();
+                                } catch (ExecutionException e) {
+                                    if (e.getCause() instanceof Exception) {
+                                        throw (Exception) e.getCause();
+                                    }
+                                    throw e;
+                                }
+                            }
+                            return renderer.render(item);
+                        }
+                    }));
+                }
+                List<Frame> frames = getFrames(pending.poll());
+                writer.write(pendingItems.poll(), frameNo, frames);
+                for (Frame frame : frames) {
+                    frameNo += frame.getRepeats();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            if (prepareExecutor != null) {
+                prepareExecutor.shutdownNow();
+            }
+        }
+        return frameNo - firstFrame;
+    }
+
+    private static List<Frame> getFrames(Future<List<Frame>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for frames");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Problem rendering frames", cause);
+        }
+    }
+}
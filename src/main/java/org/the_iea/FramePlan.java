@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The complete schedule of an animation, worked out before anything is
+ * rendered. This assigns every step (e.g. a day) its range of output frame
+ * numbers, so that any contiguous part of the animation can be rendered on its
+ * own, e.g. by a different process.
+ *
+ * @author Guy Griffiths
+ */
+public class FramePlan<T extends FramePlan.PlannedStep> {
+    /**
+     * A step of the plan, which produces a known number of output frames
+     */
+    public interface PlannedStep {
+        /**
+         * @return The number of output frames this step takes up
+         */
+        public int getOutputFrames();
+    }
+
+    /**
+     * A contiguous part of a {@link FramePlan}
+     */
+    public static class Shard<T> {
+        private final List<T> steps;
+        private final int firstFrame;
+
+        private Shard(List<T> steps, int firstFrame) {
+            this.steps = steps;
+            this.firstFrame = firstFrame;
+        }
+
+        /**
+         * @return The steps in this shard, in order
+         */
+        public List<T> getSteps() {
+            return steps;
+        }
+
+        /**
+         * @return The output frame number of the start of this shard
+         */
+        public int getFirstFrame() {
+            return firstFrame;
+        }
+    }
+
+    private final List<T> steps;
+    private final int[] firstFrames;
+    private final int totalFrames;
+
+    /**
+     * @param steps
+     *            - All of the steps of the animation, in order
+     */
+    public FramePlan(List<T> steps) {
+        this.steps = Collections.unmodifiableList(steps);
+        firstFrames = new int[steps.size()];
+        int frameNo = 0;
+        for (int i = 0; i < steps.size(); i++) {
+            firstFrames[i] = frameNo;
+            frameNo += steps.get(i).getOutputFrames();
+        }
+        totalFrames = frameNo;
+    }
+
+    public List<T> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @param index
+     *            - The index of a step
+     * @return The output frame number of the start of that step
+     */
+    public int getFirstFrame(int index) {
+        return firstFrames[index];
+    }
+
+    /**
+     * @return The total number of output frames in the animation
+     */
+    public int getTotalFrames() {
+        return totalFrames;
+    }
+
+    /**
+     * Splits the plan into contiguous shards with roughly the same number of
+     * output frames in each. Steps are never split between shards.
+     * 
+     * @param index
+     *            - The index of the shard to get, from 0 to
+     *            <code>nShards - 1</code>
+     * @param nShards
+     *            - The number of shards to split the plan into
+     * @return The requested {@link Shard}. This may be empty if some steps
+     *         are very long.
+     */
+    public Shard<T> getShard(int index, int nShards) {
+        if (index < 0 || index >= nShards) {
+            throw new IllegalArgumentException("Shard " + index + " does not exist");
+        }
+        int start = 0;
+        while (start < steps.size() && shardOf(start, nShards) < index) {
+            start++;
+        }
+        int end = start;
+        while (end < steps.size() && shardOf(end, nShards) == index) {
+            end++;
+        }
+        int firstFrame = start < steps.size() ? firstFrames[start] : totalFrames;
+        return new Shard<>(steps.subList(start, end), firstFrame);
+    }
+
+    private int shardOf(int stepIndex, int nShards) {
+        return (int) ((long) firstFrames[stepIndex] * nShards / Math.max(1, totalFrames));
+    }
+}
@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Encodes frames as PNG and writes them to disk in the background, so that
+ * rendering does not have to wait for compression or disk I/O. Encoding is done
+ * with a {@link PngEncoder}, which by default uses fast compression, since the
+ * frames are usually only used to create a video.
+ * 
+ * Frames are encoded on a pool of threads. Only a limited number of frames can
+ * be waiting to be written at once. Once that limit is reached,
+ * {@link FrameSink#write(BufferedImage, File...)} blocks until a frame has been
+ * written, which stops rendering from running too far ahead.
+ * 
+ * Images must not be modified once they have been passed to the sink. Frames
+ * are only guaranteed to have been written once {@link FrameSink#close()} has
+ * returned. The encoding threads do not stop the JVM from exiting, so a run
+ * which fails part way through will not hang.
+ *
+ * @author Guy Griffiths
+ */
+public class FrameSink implements Closeable {
+    private final ExecutorService encoders;
+    private final PngEncoder encoder;
+    private final Semaphore slots;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final long startTime = System.nanoTime();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    /**
+     * Notified once a frame has been completely written
+     */
+    public interface WriteListener {
+        /**
+         * @param files
+         *            - The files the frame was written to
+         * @param size
+         *            - The size of the encoded frame, in bytes
+         * @param crc
+         *            - The CRC-32 of the encoded frame
+         */
+        public void written(File[] files, long size, long crc) throws IOException;
+    }
+
+    /**
+     * Creates a {@link FrameSink} with one encoder per processor
+     */
+    public FrameSink() {
+        this(Runtime.getRuntime().availableProcessors(),
+                2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param nEncoders
+     *            - The number of threads to encode frames on
+     * @param queueSize
+     *            - The maximum number of frames which can be waiting to be
+     *            encoded or written at once
+     */
+    public FrameSink(int nEncoders, int queueSize) {
+        this(nEncoders, queueSize, new PngEncoder());
+    }
+
+    /**
+     * @param nEncoders
+     *            - The number of threads to encode frames on
+     * @param queueSize
+     *            - The maximum number of frames which can be waiting to be
+     *            encoded or written at once
+     * @param encoder
+     *            - The {@link PngEncoder} to encode frames with
+     */
+    public FrameSink(int nEncoders, int queueSize, PngEncoder encoder) {
+        if (nEncoders < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Must have at least one encoder and queue slot");
+        }
+        encoders = Executors.newFixedThreadPool(nEncoders, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "frame-encoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        slots = new Semaphore(queueSize);
+        this.encoder = encoder;
+    }
+
+    /**
+     * Queues a frame to be encoded and written. This returns as soon as there
+     * is space in the queue.
+     * 
+     * @param image
+     *            - The image to write. This must not be modified after it has
+     *            been passed to this method.
+     * @param files
+     *            - The files to write the image to. The image is only encoded
+     *            and written once, however many files are given. The other
+     *            files are hard links to the first where the filesystem
+     *            supports them, and copies otherwise.
+     * @throws IOException
+     *             If a previously queued frame could not be written
+     */
+    public void write(BufferedImage image, File... files) throws IOException {
+        write(image, null, files);
+    }
+
+    /**
+     * Queues a frame to be encoded and written. This returns as soon as there
+     * is space in the queue.
+     * 
+     * @param image
+     *            - The image to write. This must not be modified after it has
+     *            been passed to this method.
+     * @param listener
+     *            - A {@link WriteListener} to notify once the frame has been
+     *            written. This is called from an encoding thread. May be
+     *            <code>null</code>.
+     * @param files
+     *            - The files to write the image to, as for
+     *            {@link FrameSink#write(BufferedImage, File...)}
+     * @throws IOException
+     *             If a previously queued frame could not be written
+     */
+    public void write(final BufferedImage image, final WriteListener listener,
+            final File... files) throws IOException {
+        checkFailure();
+        long start = System.nanoTime();
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting to write frame");
+        }
+        blockedNanos.addAndGet(System.nanoTime() - start);
+
+        encoders.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long encodeStart = System.nanoTime();
+                    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                    CRC32 crc = new CRC32();
+                    encoder.encode(image, new CheckedOutputStream(encoded, crc));
+                    long writeStart = System.nanoTime();
+                    int nWritten = 0;
+                    for (int i = 0; i < files.length; i++) {
+                        if (i == 0 || !link(files[i], files[0])) {
+                            replace(files[i], encoded);
+                            nWritten++;
+                        }
+                    }
+                    long end = System.nanoTime();
+
+                    frames.incrementAndGet();
+                    bytes.addAndGet((long) encoded.size() * nWritten);
+                    encodeNanos.addAndGet(writeStart - encodeStart);
+                    writeNanos.addAndGet(end - writeStart);
+
+                    if (listener != null) {
+                        listener.written(files, encoded.size(), crc.getValue());
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for all queued frames to be written, and then prints the
+     * throughput statistics to standard error, so that they can't get mixed
+     * up with anything written to standard output
+     * 
+     * @throws IOException
+     *             If any frame could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        encoders.shutdown();
+        try {
+            while (!encoders.awaitTermination(1, TimeUnit.MINUTES)) {
+                /*
+                 * Keep waiting until everything has been written
+                 */
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for frames to be written");
+        }
+        System.err.println(getStatistics());
+        checkFailure();
+    }
+
+    /**
+     * @return A summary of how many frames have been written, and how fast
+     *         they were encoded and written
+     */
+    public String getStatistics() {
+        long nFrames = frames.get();
+        double mb = bytes.get() / (1024.0 * 1024.0);
+        double elapsed = (System.nanoTime() - startTime) / 1e9;
+        double encodeSecs = encodeNanos.get() / 1e9;
+        double writeSecs = writeNanos.get() / 1e9;
+        return String.format(
+                "Wrote %d frames (%.1f MB) in %.1fs (%.2f frames/s). "
+                        + "Encoding: %.2f frames/s per thread. Writing: %.1f MB/s per thread. "
+                        + "Rendering blocked for %.1fs waiting for the queue.",
+                nFrames, mb, elapsed, nFrames / elapsed,
+                encodeSecs > 0 ? nFrames / encodeSecs : 0.0, writeSecs > 0 ? mb / writeSecs : 0.0,
+                blockedNanos.get() / 1e9);
+    }
+
+    /**
+     * Writes a file by writing a temporary file next to it and renaming it
+     * over the top. An existing file may be a hard link to another frame from
+     * a previous run, so writing into it directly would change that frame too.
+     * Renaming replaces just this name, and means that a frame is never left
+     * half-written.
+     * 
+     * @param file
+     *            - The file to write
+     * @param contents
+     *            - The contents to write to it
+     */
+    private static void replace(File file, ByteArrayOutputStream contents) throws IOException {
+        File tmpFile = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        try {
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                contents.writeTo(out);
+            }
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    private static boolean link(File link, File existing) {
+        try {
+            Files.deleteIfExists(link.toPath());
+            Files.createLink(link.toPath(), existing.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException("Problem writing frame", e);
+        }
+    }
+}
@@ -41,25 +41,29 @@ import java.awt.geom.RoundRectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.ImageIO;
 
-import org.apache.commons.io.FileUtils;
 import org.joda.time.DateTime;
 import org.joda.time.Days;
-import org.joda.time.chrono.ISOChronology;
 
-import ucar.ma2.Array;
 import ucar.nc2.Attribute;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset;
@@ -85,13 +89,11 @@ import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
-import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array4D;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 import uk.ac.rdg.resc.edal.util.TimeUtils;
 import uk.ac.rdg.resc.edal.util.ValuesArray4D;
-import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
 
 /**
  * A dataset to plot CH4 point data as larger squares.
@@ -100,6 +102,9 @@ import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
  * data, with annotations. It is not designed to be especially portable. It is
  * rather a one-shot visualisation, and to change the visualisation, you need to
  * change the code and re-run.
+ * 
+ * Data for different times can be read concurrently from multiple threads,
+ * once the dataset has been configured.
  *
  * @author Guy Griffiths
  */
@@ -108,13 +113,73 @@ public class GOSATGriddedDataset extends GriddedDataset {
 
     private int averagingWindow;
     private List<File> files;
+    private List<String> variableIds;
 
-    private Map<DateTime, Double> time2GlobalValue = new HashMap<>();
-
-    private GridDataSource gds = null;
+    private volatile GridDataSource gds = null;
 
     private int bleed;
 
+    private boolean slidingWindow = false;
+    /*
+     * Sliding windows which are not currently being read from. Each read
+     * takes the window nearest to the time it needs, so that concurrent reads
+     * never share a window.
+     */
+    private Map<List<String>, List<SlidingWindow>> idleWindows = new HashMap<>();
+    /*
+     * The maximum number of idle windows to keep for each set of variables.
+     * Each one holds full-size grids, so the least recently used are thrown
+     * away beyond this.
+     */
+    private static final int MAX_IDLE_WINDOWS = 4;
+    /*
+     * The number of bands of rows which the grid is split into when gridding
+     * in parallel. This is fixed so that the work is split up in the same way
+     * whatever the number of threads.
+     */
+    private static final int GRIDDING_BANDS = 32;
+
+    private boolean gridAllVariables = false;
+    /*
+     * The number of time steps to cache gridded values for. This only needs
+     * to be big enough to cover the times being read concurrently.
+     */
+    private static final int TIME_CACHE_SIZE = 64;
+    private Map<Integer, Map<String, GriddedValues>> timeCache = Collections
+            .synchronizedMap(new LinkedHashMap<Integer, Map<String, GriddedValues>>() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Integer, Map<String, GriddedValues>> eldest) {
+                    return size() > TIME_CACHE_SIZE;
+                }
+            });
+
+    /*
+     * Times which have been gridded ahead of being read, keyed by variable ID
+     * and time index. Each is removed when it is read.
+     */
+    private Map<String, GriddedValues> preparedValues = new ConcurrentHashMap<>();
+
+    private volatile Map<String, GOSATPointStore> pointStores = null;
+
+    /*
+     * The number of days to read ahead of a sliding window as it moves
+     * forwards, and the memory they can use. A depth of 0 disables reading
+     * ahead.
+     */
+    private int prefetchDepth = 0;
+    private long prefetchMemory = Prefetcher.DEFAULT_MEMORY_BUDGET;
+    private final AtomicLong prefetchBlockedNanos = new AtomicLong(0);
+
+    /*
+     * The number of threads to grid on. Each one grids a contiguous part of
+     * the files into its own grid.
+     */
+    private int parallelism = 1;
+    private volatile ForkJoinPool pool = null;
+
     /**
      * Create a new GOSAT dataset
      * 
@@ -139,7 +204,13 @@ public class GOSATGriddedDataset extends GriddedDataset {
      */
     public GOSATGriddedDataset(String id, String location, List<String> varsToInclude,
             int averagingWindow, int gridXSize, int gridYSize, int bleed) {
-        super(id, getMetadata(location, varsToInclude, gridXSize, gridYSize, averagingWindow));
+        this(id, FileManifest.load(location), varsToInclude, averagingWindow, gridXSize,
+                gridYSize, bleed);
+    }
+
+    private GOSATGriddedDataset(String id, FileManifest manifest, List<String> varsToInclude,
+            int averagingWindow, int gridXSize, int gridYSize, int bleed) {
+        super(id, getMetadata(manifest, varsToInclude, gridXSize, gridYSize, averagingWindow));
         /*
          * Average over time
          */
@@ -148,44 +219,146 @@ public class GOSATGriddedDataset extends GriddedDataset {
          * Bleed into neighbouring cells
          */
         this.bleed = bleed;
+        this.variableIds = new ArrayList<>(varsToInclude);
 
         /*
-         * Get list of all of the files to render
+         * Get list of all of the files to render. These are sorted
+         * alphabetically, which will correspond to time order
          */
-        this.files = CdmUtils.expandGlobExpression(location);
-        /*
-         * Sort them alphabetically, which will correspond to time order
-         */
-        Collections.sort(files);
+        this.files = manifest.getFiles();
+    }
 
+    /**
+     * Sets whether to use a sliding window when averaging over time.
+     * 
+     * When enabled, running sums of the averaging window are kept between
+     * reads, so that reading consecutive time steps only needs to read the
+     * file entering the window rather than every file in it. This is much
+     * faster when rendering an animation in time order, at the expense of
+     * keeping the points from the whole window in memory.
+     * 
+     * @param slidingWindow
+     *            - <code>true</code> to use a sliding window
+     */
+    public void setSlidingWindow(boolean slidingWindow) {
+        this.slidingWindow = slidingWindow;
+        clearIdleWindows();
+    }
+
+    /**
+     * Sets whether to grid all of the variables at once.
+     * 
+     * When enabled, each file is read once for all variables, sharing the
+     * position data and the grid cell calculation. The gridded values of the
+     * other variables are cached, so that reading them for the same time
+     * does not read anything. This is worthwhile when plotting more than one
+     * variable for each time.
+     * 
+     * @param gridAllVariables
+     *            - <code>true</code> to grid all variables in a single pass
+     */
+    public void setGridAllVariables(boolean gridAllVariables) {
+        this.gridAllVariables = gridAllVariables;
+        this.timeCache.clear();
     }
 
-    private static Collection<GridVariableMetadata> getMetadata(String location,
+    /**
+     * Sets the number of threads to use when gridding data. The work is split
+     * up in the same way whatever the number of threads, so the results are
+     * exactly the same.
+     * 
+     * @param parallelism
+     *            - The number of threads to use
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Sets how far to read ahead when using a sliding window.
+     * 
+     * When enabled, the files for the days after the window are read in the
+     * background as it moves forwards through time, so that reading them
+     * overlaps with gridding and rendering the current day.
+     * 
+     * @param depth
+     *            - The number of days to read ahead, or 0 to read each day
+     *            only when it is needed
+     * @param memoryBudget
+     *            - The number of bytes which days which have been read ahead
+     *            can use before no more are started
+     * @see GOSATGriddedDataset#setSlidingWindow(boolean)
+     */
+    public void setPrefetch(int depth, long memoryBudget) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Prefetch depth cannot be negative");
+        }
+        this.prefetchDepth = depth;
+        this.prefetchMemory = memoryBudget;
+        clearIdleWindows();
+    }
+
+    /**
+     * @return The total time spent waiting for days which were being read
+     *         ahead, in milliseconds. If this is large, reading is slower than
+     *         rendering, and reading further ahead will not help.
+     */
+    public long getPrefetchBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(prefetchBlockedNanos.get());
+    }
+
+    /**
+     * Reads data from pre-binned point stores rather than the original files.
+     * 
+     * A store is kept for each variable in the given directory. Any which are
+     * missing, or older than the files they were created from, are created
+     * first, which requires reading all of the files once.
+     * 
+     * @param storeDir
+     *            - The directory to keep the point stores in
+     * @throws IOException
+     *             If there is a problem creating or opening the stores
+     * @see GOSATPointStore
+     */
+    public void setPointStore(File storeDir) throws IOException {
+        if (!storeDir.exists()) {
+            storeDir.mkdirs();
+        }
+        Map<String, GOSATPointStore> stores = new HashMap<>();
+        for (String variableId : getVariableIds()) {
+            HorizontalGrid horizontalGrid = getVariableMetadata(variableId).getHorizontalDomain();
+            File storeFile = new File(storeDir, variableId + "-" + horizontalGrid.getXSize() + "x"
+                    + horizontalGrid.getYSize() + ".bin");
+            if (!GOSATPointStore.isValid(storeFile, files, horizontalGrid)) {
+                GOSATPointStore.ingest(files, variableId, horizontalGrid, storeFile);
+            }
+            stores.put(variableId, GOSATPointStore.open(storeFile));
+        }
+        this.pointStores = stores;
+        clearIdleWindows();
+    }
+
+    private static Collection<GridVariableMetadata> getMetadata(FileManifest manifest,
             List<String> varsToInclude, int gridXSize, int gridYSize, int window) {
-        Pattern fnPattern = Pattern.compile(".*(\\d{8}).*");
-        /*
-         * Opens the first file in the location to see what variables are
-         * present
-         */
-        List<File> files = CdmUtils.expandGlobExpression(location);
-        Collections.sort(files);
+        List<File> files = manifest.getFiles();
 
         /*
          * Create the time axis from the dates in the file names
          */
         List<DateTime> times = new ArrayList<>();
         for (int i = window; i < files.size() - 1 - window; i++) {
-            Matcher m = fnPattern.matcher(files.get(i).getName());
-            if (m.matches()) {
-                String dateStr = m.group(1);
-                DateTime time = new DateTime(Integer.parseInt(dateStr.substring(0, 4)),
-                        Integer.parseInt(dateStr.substring(4, 6)),
-                        Integer.parseInt(dateStr.substring(6, 8)), 0, 0, 0,
-                        ISOChronology.getInstanceUTC());
-                times.add(time);
-            } else {
+            DateTime time = manifest.getDate(files.get(i));
+            if (time == null) {
                 throw new EdalException("Problem getting time from filename");
             }
+            times.add(time);
         }
 
         RegularGrid globalGrid = new RegularGridImpl(BoundingBoxImpl.global(), gridXSize,
@@ -194,28 +367,38 @@ public class GOSATGriddedDataset extends GriddedDataset {
 
         List<GridVariableMetadata> ret = new ArrayList<>();
 
-        File file = files.get(0);
+        /*
+         * Opens the first file in the location to see what variables are
+         * present, unless we already know from a previous run
+         */
         NetcdfDataset dataset = null;
         try {
-            dataset = NetcdfDatasetAggregator.getDataset(file.getAbsolutePath());
             for (String reqdVar : varsToInclude) {
-                Variable var = dataset.findVariable(reqdVar);
-                Variable qVar = dataset.findVariable(reqdVar + "_quality_flag");
+                Parameter parameter = manifest.getParameter(reqdVar);
+                if (parameter == null) {
+                    if (dataset == null) {
+                        dataset = NetcdfDatasetAggregator
+                                .getDataset(files.get(0).getAbsolutePath());
+                    }
+                    Variable var = dataset.findVariable(reqdVar);
+                    Variable qVar = dataset.findVariable(reqdVar + "_quality_flag");
 
-                if (var == null) {
-                    throw new EdalException("Required variable " + reqdVar + " not found");
-                }
-                if (qVar == null) {
-                    throw new EdalException(
-                            "Quality control for required variable " + reqdVar + " not found");
-                }
+                    if (var == null) {
+                        throw new EdalException("Required variable " + reqdVar + " not found");
+                    }
+                    if (qVar == null) {
+                        throw new EdalException(
+                                "Quality control for required variable " + reqdVar + " not found");
+                    }
 
-                Attribute unitsAttr = var.findAttribute("units");
-                String units = unitsAttr == null ? "" : unitsAttr.getStringValue();
-                Attribute stdNameAttr = var.findAttribute("standard_name");
-                String stdName = stdNameAttr == null ? "" : stdNameAttr.getStringValue();
-                Parameter parameter = new Parameter(var.getFullName(), var.getFullName(),
-                        var.getDescription(), units, stdName);
+                    Attribute unitsAttr = var.findAttribute("units");
+                    String units = unitsAttr == null ? "" : unitsAttr.getStringValue();
+                    Attribute stdNameAttr = var.findAttribute("standard_name");
+                    String stdName = stdNameAttr == null ? "" : stdNameAttr.getStringValue();
+                    parameter = new Parameter(var.getFullName(), var.getFullName(),
+                            var.getDescription(), units, stdName);
+                    manifest.putParameter(reqdVar, parameter);
+                }
                 ret.add(new GridVariableMetadata(parameter, globalGrid, null, timeAxis, true));
             }
         } catch (IOException e) {
@@ -225,10 +408,106 @@ public class GOSATGriddedDataset extends GriddedDataset {
                 NetcdfDatasetAggregator.releaseDataset(dataset);
             }
         }
+        manifest.save();
 
         return ret;
     }
 
+    /**
+     * Calculates the mean value of a variable at every time on its time axis,
+     * both globally and within a set of regions.
+     * 
+     * This makes a single pass through the files in time order, so is much
+     * quicker than reading the gridded data for each time. No images or
+     * {@link Array4D}s are produced.
+     * 
+     * @param variableId
+     *            - The ID of the variable to calculate means of
+     * @param regions
+     *            - Regions to calculate means within, keyed by name. May be
+     *            empty.
+     * @return The {@link MeanTimeSeries}
+     */
+    public MeanTimeSeries getMeanTimeSeries(String variableId, Map<String, BoundingBox> regions) {
+        GridVariableMetadata metadata = getVariableMetadata(variableId);
+        RegularGrid grid = (RegularGrid) metadata.getHorizontalDomain();
+        TimeAxis timeAxis = metadata.getTemporalDomain();
+
+        List<String> regionNames = new ArrayList<>();
+        regionNames.add(MeanTimeSeries.GLOBAL);
+        regionNames.addAll(regions.keySet());
+        boolean[][] xMasks = new boolean[regionNames.size()][];
+        boolean[][] yMasks = new boolean[regionNames.size()][];
+        int r = 1;
+        for (BoundingBox region : regions.values()) {
+            xMasks[r] = new boolean[grid.getXSize()];
+            for (int x = 0; x < xMasks[r].length; x++) {
+                /*
+                 * Wrap the longitude of the cell into the region's range
+                 */
+                double lon = grid.getXAxis().getCoordinateValue(x) - region.getMinX();
+                lon -= 360.0 * Math.floor(lon / 360.0);
+                xMasks[r][x] = lon <= region.getWidth();
+            }
+            yMasks[r] = new boolean[grid.getYSize()];
+            for (int y = 0; y < yMasks[r].length; y++) {
+                double lat = grid.getYAxis().getCoordinateValue(y);
+                yMasks[r][y] = lat >= region.getMinY() && lat <= region.getMaxY();
+            }
+            r++;
+        }
+
+        /*
+         * Use a private window so that concurrent reads are not disturbed
+         */
+        SlidingWindow window = new SlidingWindow(Collections.singletonList(variableId), grid,
+                grid.getXSize(), grid.getYSize());
+        /*
+         * The grids to bleed into are reused for every time step
+         */
+        GridAccumulator scratch = new GridAccumulator(grid.getXSize(), grid.getYSize());
+        GridAccumulator bledGrid = new GridAccumulator(grid.getXSize(), grid.getYSize());
+        double[][] means = new double[regionNames.size()][timeAxis.size()];
+        try {
+            for (int t = 0; t < timeAxis.size(); t++) {
+                window.moveTo(t);
+                GridAccumulator bled = window.accumulators[0].bleed(bleed, scratch, bledGrid);
+                for (r = 0; r < regionNames.size(); r++) {
+                    means[r][t] = bled.mean(xMasks[r], yMasks[r]);
+                }
+            }
+        } finally {
+            window.close();
+        }
+        return new MeanTimeSeries(variableId, timeAxis.getCoordinateValues(), regionNames, means);
+    }
+
+    /**
+     * Grids the data for a time ahead of it being read.
+     * 
+     * When rendering an animation on several threads, the threads would each
+     * need their own sliding window, and each window would have to jump
+     * forwards several days at a time. Instead, each time can be prepared in
+     * order on a single thread, which moves a single window forward one day at
+     * a time, and then read (e.g. with {@link MapImage}) on any thread. The
+     * prepared values are only kept until the time is read.
+     * 
+     * @param variableId
+     *            - The ID of the variable which will be read
+     * @param time
+     *            - The time which will be read
+     */
+    public void prepare(String variableId, DateTime time) {
+        GridVariableMetadata metadata = getVariableMetadata(variableId);
+        int tIndex = metadata.getTemporalDomain().findIndexOf(time);
+        if (tIndex < 0) {
+            throw new EdalException("Time " + time + " is not in dataset " + getId());
+        }
+        HorizontalGrid horizontalGrid = metadata.getHorizontalDomain();
+        preparedValues.put(variableId + "@" + tIndex, gridTime(variableId, tIndex,
+                horizontalGrid.getXSize(), horizontalGrid.getYSize()));
+    }
+
     @Override
     protected DataReadingStrategy getDataReadingStrategy() {
         /*
@@ -239,142 +518,654 @@ public class GOSATGriddedDataset extends GriddedDataset {
 
     @Override
     protected GridDataSource openDataSource() throws DataReadingException {
+        /*
+         * The data source holds no state of its own, so one instance is shared
+         * between all threads reading from this dataset
+         */
         if (this.gds == null) {
-            this.gds = new GridDataSource() {
-                @Override
-                public void close() throws DataReadingException {
+            synchronized (this) {
+                if (this.gds == null) {
+                    this.gds = createDataSource();
                 }
+            }
+        }
+        return this.gds;
+    }
 
-                @Override
-                public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
-                        int zmax, int ymin, int ymax, int xmin, int xmax)
-                        throws IOException, DataReadingException {
-                    int tSize = tmax - tmin + 1;
-                    int zSize = zmax - zmin + 1;
-                    int ySize = ymax - ymin + 1;
-                    int xSize = xmax - xmin + 1;
-
-                    if (tSize > 1 || zSize > 1) {
-                        throw new EdalException("Only single time/z values supported");
-                    }
+    private GridDataSource createDataSource() {
+        return new GridDataSource() {
+            @Override
+            public void close() throws DataReadingException {
+            }
 
-                    ValuesArray4D sums = new ValuesArray4D(tSize, zSize, ySize, xSize);
-                    ValuesArray4D totals = new ValuesArray4D(tSize, zSize, ySize, xSize);
-                    HorizontalGrid horizontalGrid = getVariableMetadata(variableId)
-                            .getHorizontalDomain();
-                    /*
-                     * Generally tmin=tmax?
-                     */
-                    for (int t = 0; t < tSize; t++) {
+            @Override
+            public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                    int zmax, int ymin, int ymax, int xmin, int xmax)
+                    throws IOException, DataReadingException {
+                int tSize = tmax - tmin + 1;
+                int zSize = zmax - zmin + 1;
+                int ySize = ymax - ymin + 1;
+                int xSize = xmax - xmin + 1;
+
+                if (zSize > 1) {
+                    throw new EdalException("Only single z values supported");
+                }
+                if (tSize > 1) {
+                    return gridTimeRange(variableId, tmin, tmax, xSize, ySize);
+                }
+
+                /*
+                 * This time may have been prepared ahead of time. If all
+                 * variables are being gridded together, this variable may
+                 * also already have been gridded along with another one.
+                 */
+                GriddedValues gridded = preparedValues.remove(variableId + "@" + tmin);
+                Map<String, GriddedValues> cached = timeCache.get(tmin);
+                if (gridded == null && cached != null) {
+                    gridded = cached.get(variableId);
+                }
+                if (gridded == null || gridded.values.getXSize() != xSize
+                        || gridded.values.getYSize() != ySize) {
+                    gridded = gridTime(variableId, tmin, xSize, ySize);
+                }
+
+                return gridded.values;
+            }
+        };
+    }
+
+    /**
+     * Grids the data for a single time step. This will be the requested
+     * variable, or all variables if {@link #setGridAllVariables(boolean)} has
+     * been set, in which case the results for the other variables are cached
+     * for later reads.
+     * 
+     * @param variableId
+     *            - The ID of the variable being read
+     * @param tIndex
+     *            - The time index to grid
+     * @param xSize
+     *            - The x-size of the grid
+     * @param ySize
+     *            - The y-size of the grid
+     * @return The gridded values for the requested variable
+     */
+    private GriddedValues gridTime(String variableId, int tIndex, int xSize, int ySize) {
+        List<String> gridVars = gridAllVariables ? variableIds
+                : Collections.singletonList(variableId);
+        /*
+         * All variables share the same horizontal grid
+         */
+        HorizontalGrid horizontalGrid = getVariableMetadata(variableId).getHorizontalDomain();
+
+        Map<String, GriddedValues> ret;
+        if (slidingWindow) {
+            /*
+             * Move a running window to the requested time, and read the
+             * values straight out of it. Nothing else can use the window
+             * until it has been released.
+             */
+            SlidingWindow window = acquireWindow(gridVars, horizontalGrid, tIndex, xSize, ySize);
+            try {
+                window.moveTo(tIndex);
+                ret = fillValues(gridVars, window.accumulators);
+            } finally {
+                releaseWindow(window);
+            }
+        } else {
+            /*
+             * Grid the whole averaging window
+             */
+            ret = fillValues(gridVars, gridFiles(gridVars, horizontalGrid, tIndex,
+                    tIndex + 2 * averagingWindow, xSize, ySize, null));
+        }
+
+        if (gridVars.size() > 1) {
+            timeCache.put(tIndex, ret);
+        }
+        return ret.get(variableId);
+    }
+
+    /**
+     * Grids the data for a contiguous range of time steps in a single pass.
+     * 
+     * A sliding window is moved through the range, so each file in the union
+     * of the averaging windows is read exactly once, whether or not
+     * {@link #setSlidingWindow(boolean)} has been set. If it has not, the
+     * window is thrown away afterwards rather than kept for later reads.
+     * 
+     * @param variableId
+     *            - The ID of the variable being read
+     * @param tmin
+     *            - The first time index to grid
+     * @param tmax
+     *            - The last time index to grid (inclusive)
+     * @param xSize
+     *            - The x-size of the grid
+     * @param ySize
+     *            - The y-size of the grid
+     * @return The gridded values for all of the times
+     */
+    private Array4D<Number> gridTimeRange(String variableId, int tmin, int tmax, int xSize,
+            int ySize) {
+        List<String> gridVars = Collections.singletonList(variableId);
+        HorizontalGrid horizontalGrid = getVariableMetadata(variableId).getHorizontalDomain();
+
+        ValuesArray4D ret = new ValuesArray4D(tmax - tmin + 1, 1, ySize, xSize);
+        SlidingWindow window = slidingWindow
+                ? acquireWindow(gridVars, horizontalGrid, tmin, xSize, ySize)
+                : new SlidingWindow(gridVars, horizontalGrid, xSize, ySize);
+        try {
+            for (int t = tmin; t <= tmax; t++) {
+                window.moveTo(t);
+                window.accumulators[0].bleed(bleed).fill(ret, t - tmin, 0);
+            }
+        } finally {
+            if (slidingWindow) {
+                releaseWindow(window);
+            } else {
+                window.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Bleeds gridded values out to surrounding cells if required, and
+     * calculates the actual data values
+     * 
+     * @param gridVars
+     *            - The IDs of the gridded variables
+     * @param accumulators
+     *            - The gridded points of each variable
+     * @return The {@link GriddedValues} of each variable
+     */
+    private Map<String, GriddedValues> fillValues(List<String> gridVars,
+            GridAccumulator[] accumulators) {
+        Map<String, GriddedValues> ret = new HashMap<>();
+        for (int v = 0; v < gridVars.size(); v++) {
+            GridAccumulator accumulator = accumulators[v];
+            ValuesArray4D values = new ValuesArray4D(1, 1, accumulator.getYSize(),
+                    accumulator.getXSize());
+            accumulator.bleed(bleed).fill(values, 0, 0);
+            ret.put(gridVars.get(v), new GriddedValues(values));
+        }
+        return ret;
+    }
+
+    /**
+     * Takes a sliding window for exclusive use. This is the idle window which
+     * is nearest to the requested time, or a new, empty window if there are no
+     * idle ones.
+     * 
+     * @param gridVars
+     *            - The IDs of the variables which the window grids
+     * @param horizontalGrid
+     *            - The grid to bin the data points onto
+     * @param tIndex
+     *            - The time index which the window will be moved to
+     * @param xSize
+     *            - The x-size of the grid
+     * @param ySize
+     *            - The y-size of the grid
+     * @return A {@link SlidingWindow} which must be released with
+     *         {@link #releaseWindow(SlidingWindow)} once finished with
+     */
+    private SlidingWindow acquireWindow(List<String> gridVars, HorizontalGrid horizontalGrid,
+            int tIndex, int xSize, int ySize) {
+        synchronized (idleWindows) {
+            List<SlidingWindow> idle = idleWindows.get(gridVars);
+            if (idle != null) {
+                SlidingWindow nearest = null;
+                Iterator<SlidingWindow> it = idle.iterator();
+                while (it.hasNext()) {
+                    SlidingWindow window = it.next();
+                    if (window.accumulators[0].getXSize() != xSize
+                            || window.accumulators[0].getYSize() != ySize) {
                         /*
-                         * Loop over the whole averaging window
+                         * Grid size has changed, so this is no longer useful
                          */
-                        for (int fi = tmin + t; fi <= tmin + t + 2 * averagingWindow; fi++) {
-                            File file = files.get(fi);
-                            NetcdfDataset dataset = null;
-                            try {
-                                dataset = NetcdfDatasetAggregator
-                                        .getDataset(file.getAbsolutePath());
-                                /*
-                                 * Read the data
-                                 */
-                                Variable latVar = dataset.findVariable("latitude");
-                                Variable lonVar = dataset.findVariable("longitude");
-                                Variable var = dataset.findVariable(variableId);
-                                Variable qVar = dataset.findVariable(variableId + "_quality_flag");
-
-                                Array latVals = latVar.read();
-                                Array lonVals = lonVar.read();
-                                Array vals = var.read();
-                                Array qVals = qVar.read();
-                                long n = vals.getSize();
-
-                                for (int i = 0; i < n; i++) {
-                                    byte qVal = qVals.getByte(i);
-                                    if (qVal == 0) {
-                                        /*
-                                         * If the data is good quality, add the
-                                         * value to the appropriate grid cell.
-                                         */
-                                        GridCoordinates2D posIndex = horizontalGrid.findIndexOf(
-                                                new HorizontalPosition(lonVals.getFloat(i),
-                                                        latVals.getFloat(i)));
-                                        /*
-                                         * Bleed the values out to surrounding
-                                         * cells if required
-                                         */
-                                        for (int xi = -bleed; xi <= bleed; xi++) {
-                                            int x = posIndex.getX() + xi;
-                                            if (x < 0) {
-                                                x += xSize;
-                                            }
-                                            if (x >= xSize) {
-                                                x -= xSize;
-                                            }
-                                            for (int yi = -bleed; yi <= bleed; yi++) {
-                                                int y = posIndex.getY() + yi;
-                                                if (y < 0 || y >= ySize) {
-                                                    continue;
-                                                }
-                                                Number currentSum = sums.get(t, 0, y, x);
-                                                if (currentSum == null) {
-                                                    currentSum = 0f;
-                                                }
-                                                Number currentTotal = totals.get(t, 0, y, x);
-                                                if (currentTotal == null) {
-                                                    currentTotal = 0;
-                                                }
-                                                sums.set(currentSum.floatValue() + vals.getFloat(i),
-                                                        t, 0, y, x);
-                                                totals.set(currentTotal.intValue() + 1, t, 0, y, x);
-                                            }
-                                        }
-                                    }
-                                }
+                        it.remove();
+                        window.close();
+                    } else if (nearest == null
+                            || window.distanceTo(tIndex) < nearest.distanceTo(tIndex)) {
+                        nearest = window;
+                    }
+                }
+                if (nearest != null) {
+                    idle.remove(nearest);
+                    return nearest;
+                }
+            }
+        }
+        return new SlidingWindow(gridVars, horizontalGrid, xSize, ySize);
+    }
 
-                            } catch (IOException e) {
-                                throw new EdalException("Problem reading data", e);
-                            } finally {
-                                if (dataset != null) {
-                                    NetcdfDatasetAggregator.releaseDataset(dataset);
-                                }
-                            }
+    /**
+     * Returns a sliding window to the idle pool. Only the most recently used
+     * window for each set of variables keeps reading ahead, since that is the
+     * one which the next read in time order will take.
+     * 
+     * @param window
+     *            - The {@link SlidingWindow} to release
+     */
+    private void releaseWindow(SlidingWindow window) {
+        synchronized (idleWindows) {
+            List<SlidingWindow> idle = idleWindows.get(window.gridVars);
+            if (idle == null) {
+                idle = new ArrayList<>();
+                idleWindows.put(window.gridVars, idle);
+            }
+            for (SlidingWindow other : idle) {
+                other.close();
+            }
+            idle.add(window);
+            if (idle.size() > MAX_IDLE_WINDOWS) {
+                idle.remove(0).close();
+            }
+        }
+    }
+
+    private void clearIdleWindows() {
+        synchronized (idleWindows) {
+            for (List<SlidingWindow> idle : idleWindows.values()) {
+                for (SlidingWindow window : idle) {
+                    window.close();
+                }
+            }
+            idleWindows.clear();
+        }
+    }
+
+    /**
+     * Gets the good quality data points of a set of variables from a single
+     * file, binned into cells of the horizontal grid. These come from the
+     * point stores if they have been set, or are read from the file
+     * otherwise.
+     * 
+     * @param gridVars
+     *            - The IDs of the variables to read
+     * @param fileIndex
+     *            - The index of the file within the sorted file list
+     * @param horizontalGrid
+     *            - The grid to bin the data points onto
+     * @return The binned data points, in the same order as
+     *         <code>gridVars</code>
+     */
+    private BinnedPoints[] readDay(List<String> gridVars, int fileIndex,
+            HorizontalGrid horizontalGrid) {
+        if (pointStores != null) {
+            BinnedPoints[] ret = new BinnedPoints[gridVars.size()];
+            for (int v = 0; v < ret.length; v++) {
+                ret[v] = pointStores.get(gridVars.get(v)).getDay(fileIndex);
+            }
+            return ret;
+        }
+        return BinnedPoints.read(files.get(fileIndex), gridVars, horizontalGrid);
+    }
+
+    /**
+     * Grids all of the good quality data points in a range of files, splitting
+     * the work across the fork/join pool.
+     * 
+     * The files are read in parallel, and then the grid is split into a fixed
+     * number of bands of rows, which are filled in parallel. Each cell is only
+     * ever added to by a single band, in file order, so the result is exactly
+     * the same as gridding the files one after another, whatever the number
+     * of threads.
+     * 
+     * @param gridVars
+     *            - The IDs of the variables to grid
+     * @param horizontalGrid
+     *            - The grid to bin the data points onto
+     * @param firstFile
+     *            - The index of the first file to grid
+     * @param lastFile
+     *            - The index of the last file to grid (inclusive)
+     * @param xSize
+     *            - The x-size of the grid to return
+     * @param ySize
+     *            - The y-size of the grid to return
+     * @param keep
+     *            - If not <code>null</code>, the points read from each file
+     *            are stored in this array, starting at index 0 for
+     *            <code>firstFile</code>
+     * @return A {@link GridAccumulator} for each variable, containing the
+     *         (unbled) points of all of the files
+     */
+    private GridAccumulator[] gridFiles(List<String> gridVars, HorizontalGrid horizontalGrid,
+            int firstFile, int lastFile, int xSize, int ySize, BinnedPoints[][] keep) {
+        BinnedPoints[][] days = keep != null ? keep
+                : new BinnedPoints[lastFile - firstFile + 1][];
+        GridAccumulator[] accumulators = new GridAccumulator[gridVars.size()];
+        for (int v = 0; v < accumulators.length; v++) {
+            accumulators[v] = new GridAccumulator(xSize, ySize);
+        }
+        ForkJoinPool pool = getPool();
+        pool.invoke(new ReadingTask(gridVars, horizontalGrid, firstFile, lastFile, days,
+                firstFile));
+        int nBands = Math.min(GRIDDING_BANDS, ySize);
+        pool.invoke(new BandTask(days, lastFile - firstFile + 1, accumulators, 0, nBands,
+                nBands));
+        return accumulators;
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    /**
+     * Reads a range of files into an array, halving the range until each task
+     * reads a single file
+     */
+    private class ReadingTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> gridVars;
+        private final HorizontalGrid horizontalGrid;
+        private final int firstFile;
+        private final int lastFile;
+        private final BinnedPoints[][] days;
+        private final int daysOffset;
+
+        ReadingTask(List<String> gridVars, HorizontalGrid horizontalGrid, int firstFile,
+                int lastFile, BinnedPoints[][] days, int daysOffset) {
+            this.gridVars = gridVars;
+            this.horizontalGrid = horizontalGrid;
+            this.firstFile = firstFile;
+            this.lastFile = lastFile;
+            this.days = days;
+            this.daysOffset = daysOffset;
+        }
+
+        @Override
+        protected void compute() {
+            if (firstFile == lastFile) {
+                days[firstFile - daysOffset] = readDay(gridVars, firstFile, horizontalGrid);
+                return;
+            }
+            int mid = (firstFile + lastFile) / 2;
+            invokeAll(new ReadingTask(gridVars, horizontalGrid, firstFile, mid, days, daysOffset),
+                    new ReadingTask(gridVars, horizontalGrid, mid + 1, lastFile, days,
+                            daysOffset));
+        }
+    }
+
+    /**
+     * Adds the points of a set of days which fall into a range of bands of
+     * grid rows. The bands are fixed, so they do not depend on the number of
+     * threads, and no two tasks ever write to the same cell.
+     */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BinnedPoints[][] days;
+        private final int nDays;
+        private final GridAccumulator[] accumulators;
+        private final int firstBand;
+        private final int lastBand;
+        private final int nBands;
+
+        BandTask(BinnedPoints[][] days, int nDays, GridAccumulator[] accumulators, int firstBand,
+                int lastBand, int nBands) {
+            this.days = days;
+            this.nDays = nDays;
+            this.accumulators = accumulators;
+            this.firstBand = firstBand;
+            this.lastBand = lastBand;
+            this.nBands = nBands;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastBand - firstBand > 1) {
+                int mid = (firstBand + lastBand) / 2;
+                invokeAll(new BandTask(days, nDays, accumulators, firstBand, mid, nBands),
+                        new BandTask(days, nDays, accumulators, mid, lastBand, nBands));
+                return;
+            }
+            int xSize = accumulators[0].getXSize();
+            int ySize = accumulators[0].getYSize();
+            int minCell = (int) ((long) ySize * firstBand / nBands) * xSize;
+            int maxCell = (int) ((long) ySize * lastBand / nBands) * xSize;
+            for (int d = 0; d < nDays; d++) {
+                for (int v = 0; v < accumulators.length; v++) {
+                    BinnedPoints points = days[d][v];
+                    for (int i = 0; i < points.size; i++) {
+                        int cell = points.cells[i];
+                        if (cell >= minCell && cell < maxCell) {
+                            accumulators[v].add(cell, points.values[i], 1);
                         }
                     }
+                }
+            }
+        }
+    }
+
+    /**
+     * The gridded values of a single variable at a single time
+     */
+    private static class GriddedValues {
+        final ValuesArray4D values;
+
+        GriddedValues(ValuesArray4D values) {
+            this.values = values;
+        }
+    }
+
+    /**
+     * Keeps running per-cell sums and counts of the data in the averaging
+     * window for a set of variables.
+     * 
+     * Consecutive time steps share all but one of their files, so rather than
+     * re-reading the whole window, moving by one time step just subtracts the
+     * day which has dropped out of the window and adds the day which has
+     * entered it. The binned points of each day in the window are kept so that
+     * they can be subtracted without being read again.
+     */
+    private class SlidingWindow {
+        private final List<String> gridVars;
+        private final HorizontalGrid horizontalGrid;
+
+        private final GridAccumulator[] accumulators;
+        private final ArrayDeque<BinnedPoints[]> days = new ArrayDeque<>();
+        /*
+         * The index of the first file in the window, or -1 if the window is
+         * empty
+         */
+        private int start = -1;
+        /*
+         * Reads the days after the window, and the index of the next day it
+         * will return
+         */
+        private Prefetcher<Integer, BinnedPoints[]> prefetcher = null;
+        private int prefetchIndex = -1;
+        /*
+         * The index of the last file added to the end of the window, or -1 if
+         * the window has not been moving forwards
+         */
+        private int lastRead = -1;
+
+        SlidingWindow(List<String> gridVars, HorizontalGrid horizontalGrid, int xSize,
+                int ySize) {
+            this.gridVars = gridVars;
+            this.horizontalGrid = horizontalGrid;
+            this.accumulators = new GridAccumulator[gridVars.size()];
+            for (int v = 0; v < accumulators.length; v++) {
+                accumulators[v] = new GridAccumulator(xSize, ySize);
+            }
+        }
+
+        /**
+         * @param tIndex
+         *            - A time index
+         * @return The number of steps needed to move this window to the given
+         *         time index
+         */
+        int distanceTo(int tIndex) {
+            return start < 0 ? Integer.MAX_VALUE : Math.abs(tIndex - start);
+        }
 
-                    ValuesArray4D ret = new ValuesArray4D(tmax - tmin + 1, zmax - zmin + 1,
-                            ymax - ymin + 1, xmax - xmin + 1);
+        /**
+         * Moves the window so that it covers the files for the given time
+         * index
+         * 
+         * @param tIndex
+         *            - The time index to centre the window on
+         */
+        void moveTo(int tIndex) {
+            int windowSize = 2 * averagingWindow + 1;
+            if (start < 0 || Math.abs(tIndex - start) >= windowSize) {
+                /*
+                 * No overlap with the current window, so rebuild it
+                 */
+                BinnedPoints[][] windowDays = new BinnedPoints[windowSize][];
+                GridAccumulator[] gridded = gridFiles(gridVars, horizontalGrid, tIndex,
+                        tIndex + windowSize - 1, accumulators[0].getXSize(),
+                        accumulators[0].getYSize(), windowDays);
+                for (int v = 0; v < accumulators.length; v++) {
+                    accumulators[v].clear();
+                    accumulators[v].merge(gridded[v]);
+                }
+                days.clear();
+                days.addAll(Arrays.asList(windowDays));
+                start = tIndex;
+                close();
+                lastRead = tIndex + windowSize - 1;
+            }
+            while (start < tIndex) {
+                accumulate(days.removeFirst(), -1);
+                BinnedPoints[] day = readNextDay(start + windowSize);
+                accumulate(day, 1);
+                days.addLast(day);
+                start++;
+            }
+            if (start > tIndex) {
+                /*
+                 * Anything read ahead is no use until the window comes back
+                 */
+                close();
+                lastRead = -1;
+            }
+            while (start > tIndex) {
+                accumulate(days.removeLast(), -1);
+                start--;
+                BinnedPoints[] day = readDay(gridVars, start, horizontalGrid);
+                accumulate(day, 1);
+                days.addFirst(day);
+            }
+        }
+
+        /**
+         * Reads a day as the window moves forwards. Once the window is moving
+         * forwards a day at a time, the following days are read in the
+         * background if required.
+         * 
+         * @param fileIndex
+         *            - The index of the file to read
+         * @return The binned points of each variable
+         */
+        private BinnedPoints[] readNextDay(int fileIndex) {
+            boolean contiguous = lastRead == fileIndex - 1;
+            lastRead = fileIndex;
+            if (prefetcher != null && prefetchIndex != fileIndex) {
+                close();
+            }
+            if (prefetcher == null) {
+                if (prefetchDepth == 0 || !contiguous) {
                     /*
-                     * Now set the actual data values
+                     * The window has jumped, so there is no reason to think
+                     * that it will carry on from here
                      */
-                    for (int t = 0; t < tSize; t++) {
-                        double sum = 0.0;
-                        int n = 0;
-                        for (int z = 0; z < zSize; z++) {
-                            for (int y = 0; y < ySize; y++) {
-                                for (int x = 0; x < xSize; x++) {
-                                    Number val = sums.get(t, z, y, x);
-                                    if (val != null) {
-                                        double pointVal = val.doubleValue()
-                                                / totals.get(t, z, y, x).doubleValue();
-                                        ret.set(pointVal, t, z, y, x);
-                                        sum += pointVal;
-                                        n++;
-                                    }
+                    return readDay(gridVars, fileIndex, horizontalGrid);
+                }
+                /*
+                 * Start reading ahead from here
+                 */
+                List<Integer> upcoming = new ArrayList<>();
+                for (int i = fileIndex; i < files.size(); i++) {
+                    upcoming.add(i);
+                }
+                prefetcher = new Prefetcher<>(upcoming,
+                        new Prefetcher.Loader<Integer, BinnedPoints[]>() {
+                            @Override
+                            public BinnedPoints[] load(Integer index) {
+                                return readDay(gridVars, index, horizontalGrid);
+                            }
+
+                            @Override
+                            public long getSize(BinnedPoints[] day) {
+                                long size = 0;
+                                for (BinnedPoints points : day) {
+                                    size += 8L * points.size;
                                 }
+                                return size;
                             }
-                        }
-                        time2GlobalValue.put(getVariableMetadata(variableId).getTemporalDomain()
-                                .getCoordinateValue(tmin + t), sum / n);
-                    }
-                    return ret;
+                        }, prefetchDepth, prefetchMemory, 1);
+                prefetchIndex = fileIndex;
+            }
+            long waitStart = System.nanoTime();
+            try {
+                BinnedPoints[] day = prefetcher.next();
+                prefetchIndex++;
+                return day;
+            } catch (IOException e) {
+                throw new EdalException("Problem reading data", e);
+            } finally {
+                prefetchBlockedNanos.addAndGet(System.nanoTime() - waitStart);
+            }
+        }
+
+        /**
+         * Stops reading ahead, and frees any days which have been read ahead.
+         * The window itself is kept, and reading ahead starts again once it
+         * moves forwards a day at a time.
+         */
+        void close() {
+            if (prefetcher != null) {
+                prefetcher.close();
+                prefetcher = null;
+            }
+        }
+
+        /**
+         * Adds or removes a day's points. These are kept in their own cells,
+         * and only bled out when the window is read.
+         * 
+         * @param day
+         *            - The binned points of each variable to add or remove
+         * @param sign
+         *            - 1 to add the points, -1 to remove them
+         */
+        private void accumulate(BinnedPoints[] day, int sign) {
+            for (int v = 0; v < accumulators.length; v++) {
+                BinnedPoints points = day[v];
+                for (int i = 0; i < points.size; i++) {
+                    accumulators[v].add(points.cells[i], sign * points.values[i], sign);
                 }
-            };
+            }
         }
-        return this.gds;
     }
 
     public static void main(String[] args) throws EdalException, IOException {
+        /*
+         * Set this to stream the frames as YUV4MPEG2 video to a file (or to
+         * standard output if it is "-") rather than writing PNG files. The
+         * video can be encoded with "ffmpeg -i <file> ..." or piped straight
+         * into "ffmpeg -i - ...".
+         */
+        String videoOutput = null;
+        if ("-".equals(videoOutput)) {
+            /*
+             * Claim standard output before anything is printed, so that
+             * nothing but the video ends up on it
+             */
+            Y4MFrameSink.claimStandardOutput();
+        }
+
         System.out.println("STARTED: " + new DateTime());
 
         /*
@@ -386,22 +1177,43 @@ public class GOSATGriddedDataset extends GriddedDataset {
             outPathFile.mkdirs();
         }
 
+        /*
+         * The frame plan can be split into shards with "--shard k/n", so that
+         * it can be rendered by several processes (e.g. on different
+         * machines) sharing the output directory. Each process starts on its
+         * own shard, then helps with any others which are not yet finished.
+         * Shards are leased, so that if a process dies, its shard is picked up
+         * again once the lease has expired.
+         */
+        int shard = 1;
+        int nShards = 1;
+        for (int i = 0; i < args.length - 1; i++) {
+            if ("--shard".equals(args[i])) {
+                String[] shardSpec = args[i + 1].split("/");
+                shard = Integer.parseInt(shardSpec[0]);
+                nShards = Integer.parseInt(shardSpec[1]);
+            }
+        }
+        if (nShards < 1 || shard < 1 || shard > nShards) {
+            throw new IllegalArgumentException("Shards must be given as k/n, where 1 <= k <= n");
+        }
+        /*
+         * Writing the mean values needs a whole extra pass over the data, so
+         * is only done when asked for with "--means"
+         */
+        boolean writeMeans = Arrays.asList(args).contains("--means");
+
         BufferedImage background = ImageIO
                 .read(GOSATGriddedDataset.class.getResource("/ch4-bg.png"));
         BufferedImage marble = ImageIO
                 .read(GOSATGriddedDataset.class.getResource("/blue_marble-2048x1024.png"));
 
-        /*
-         * Create an image generator with griddedData single raster layer
-         */
-        MapImage imageGen = new MapImage();
         /*
          * Empirical scale range, found to give a good contrast
          */
         SegmentColourScheme colourScheme = new SegmentColourScheme(
                 new ScaleRange(1750f, 1875f, false), null, null, new Color(0, true), "psu-plasma",
                 250);
-        imageGen.getLayers().add(new RasterLayer("xch4", colourScheme));
 
         /*
          * Create dataset and simple data catalogue
@@ -409,70 +1221,475 @@ public class GOSATGriddedDataset extends GriddedDataset {
         GOSATGriddedDataset dataset = new GOSATGriddedDataset("gosat",
                 "/home/guy/Data/s4c/ch4/**/*.nc", Arrays.asList(new String[] { "xch4" }), 10, 3600,
                 1800, 10);
+        /*
+         * We render each day in order, so there is no need to re-read the
+         * whole averaging window for every frame
+         */
+        dataset.setSlidingWindow(true);
+        /*
+         * Read upcoming days in the background whilst rendering
+         */
+        dataset.setPrefetch(Prefetcher.DEFAULT_DEPTH, Prefetcher.DEFAULT_MEMORY_BUDGET);
+        /*
+         * Only parse the NetCDF files once. Subsequent runs (e.g. with a
+         * different colour scale) read the binned points from the store.
+         */
+        dataset.setPointStore(new File("/home/guy/Data/s4c/ch4-store/"));
+        dataset.setParallelism(Runtime.getRuntime().availableProcessors());
         SimpleFeatureCatalogue<GriddedDataset> catalogue = new SimpleFeatureCatalogue<GriddedDataset>(
                 dataset, false);
 
+        /*
+         * Write out the mean values globally and in each of the annotated
+         * regions. These can be used for inset charts. This only needs doing
+         * once, however many processes are rendering.
+         */
+        if (writeMeans && shard == 1) {
+            Map<String, BoundingBox> meanRegions = new LinkedHashMap<>();
+            for (Annotation annotation : regions) {
+                if (annotation.bbox != null) {
+                    meanRegions.put(annotation.title, annotation.bbox);
+                }
+            }
+            dataset.getMeanTimeSeries("xch4", meanRegions)
+                    .writeCsv(new File(outPath + "xch4-means.csv"));
+        }
+
         GridVariableMetadata ch4Metadata = dataset.getVariableMetadata("xch4");
         TimeAxis timeAxis = ch4Metadata.getTemporalDomain();
 
+        /*
+         * We output frames with frame numbers rather than datetimes, since we
+         * will sometimes have multiple frames for a single day (when drawing
+         * annotations we slow down the frame rate).
+         * 
+         * The frames for every day are planned up front, so the frame numbers
+         * of any day are known before anything is rendered.
+         */
+        DateTime startTime = timeAxis.getCoordinateValue(0);
+        List<DayPlan> days = new ArrayList<>();
+        for (DateTime time : timeAxis.getCoordinateValues()) {
+            if (!time.isBefore(startTime)) {
+                days.add(planDay(time));
+            }
+        }
+        FramePlan<DayPlan> plan = new FramePlan<>(days);
+
+        long leaseTimeout = 1000L * 60 * 10;
+
+        /*
+         * When an annotation is shown, the same frame is repeated several
+         * times. If this is true, each frame is only written once, and an
+         * ffmpeg concat script gives the time to show it for. Otherwise a file
+         * is written for every output frame, with repeats hard-linked where
+         * possible.
+         */
+        boolean writeManifest = true;
+        if (videoOutput != null && nShards > 1) {
+            throw new IllegalArgumentException("Video output cannot be split into shards");
+        }
+        /*
+         * When writing PNGs, completed days are recorded in a checkpoint file.
+         * If this is true, a run which was stopped part way through will skip
+         * any days whose frames are already on disk.
+         */
+        boolean resume = true;
+
+        /*
+         * The concat script only depends on the plan, so is written before
+         * any frames. Only the first shard writes it.
+         */
+        File manifestFile = new File(outPath + "frames.ffconcat");
+        boolean linkRepeats = !writeManifest;
+        if (writeManifest && videoOutput == null && shard == 1) {
+            ConcatManifest manifest = new ConcatManifest(30);
+            for (int i = 0; i < days.size(); i++) {
+                int frameNo = plan.getFirstFrame(i);
+                DayPlan day = days.get(i);
+                for (int f = 0; f < day.opacities.length; f++) {
+                    manifest.add(getFrameFile(outPath, frameNo), day.repeats);
+                    frameNo += day.repeats;
+                }
+            }
+            manifest.write(manifestFile);
+        }
+
+        CH4FrameRenderer ch4Renderer = new CH4FrameRenderer(background, marble, colourScheme,
+                catalogue);
+        /*
+         * Work through the shards starting with our own. A shard held by
+         * another process may be given up or its lease may expire, so keep
+         * going round until every shard has been finished.
+         */
+        boolean[] finished = new boolean[nShards];
+        int nFinished = 0;
+        while (nFinished < nShards) {
+            boolean rendered = false;
+            for (int s = 0; s < nShards; s++) {
+                int k = (shard - 1 + s) % nShards;
+                if (finished[k]) {
+                    continue;
+                }
+                String shardName = "shard-" + (k + 1) + "-of-" + nShards;
+                File checkpointFile = new File(outPath
+                        + (nShards == 1 ? "checkpoint.txt" : shardName + "-checkpoint.txt"));
+                try (ShardLease lease = nShards == 1 ? null
+                        : ShardLease.acquire(outPathFile, shardName, leaseTimeout)) {
+                    if (nShards > 1 && lease == null) {
+                        /*
+                         * Finished, or being rendered by another process
+                         */
+                        if (ShardLease.isComplete(outPathFile, shardName)) {
+                            finished[k] = true;
+                            nFinished++;
+                        }
+                        continue;
+                    }
+                    if (!resume) {
+                        checkpointFile.delete();
+                    }
+                    renderFrames(plan.getShard(k, nShards), dataset, ch4Renderer, outPath,
+                            checkpointFile, linkRepeats, videoOutput);
+                    if (lease != null) {
+                        lease.complete();
+                        System.out.println("Finished " + shardName);
+                    }
+                    finished[k] = true;
+                    nFinished++;
+                    rendered = true;
+                }
+            }
+            if (nFinished < nShards && !rendered) {
+                /*
+                 * Everything left is held by other processes. Wait a while
+                 * before checking whether they have finished or died.
+                 */
+                try {
+                    Thread.sleep(leaseTimeout / 4);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted whilst waiting for shards");
+                }
+            }
+        }
+
+        if (videoOutput != null) {
+            System.out.println("Finished writing video.  Now run:\nffmpeg -i '" + videoOutput
+                    + "' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
+        } else if (writeManifest) {
+            System.out.println("Finished writing frames.  Now run:\nffmpeg -f concat -safe 0 -i '"
+                    + manifestFile.getPath()
+                    + "' -vf fps=30 -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
+        } else {
+            System.out.println("Finished writing frames.  Now run:\nffmpeg -r 30 -i '" + outPath
+                    + "frame-%05d.png' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
+        }
+
+        System.out.println(
+                "Time spent waiting for data: " + dataset.getPrefetchBlockedMillis() + "ms");
+        System.out.println("FINISHED: " + new DateTime());
+
+    }
+
+    /**
+     * Renders part of the CH4 animation and writes its frames. Days are
+     * rendered in parallel, and written in order.
+     * 
+     * @param shard
+     *            - The part of the {@link FramePlan} to render
+     * @param dataset
+     *            - The dataset being rendered. Each day is gridded on a single
+     *            thread in order, so that its sliding window only ever moves
+     *            forward one day at a time.
+     * @param ch4Renderer
+     *            - The {@link CH4FrameRenderer} to render each day with
+     * @param framePath
+     *            - The directory to write frames to
+     * @param checkpointFile
+     *            - The file to record completed days in. Days which it
+     *            records as complete are not rendered again.
+     * @param linkRepeats
+     *            - Whether to write a file for every output frame, rather than
+     *            once for each rendered frame
+     * @param videoOutput
+     *            - The file to stream the frames to as video ("-" for
+     *            standard output), or <code>null</code> to write PNG files
+     */
+    private static void renderFrames(FramePlan.Shard<DayPlan> shard,
+            final GOSATGriddedDataset dataset, final CH4FrameRenderer ch4Renderer,
+            final String framePath, final File checkpointFile, final boolean linkRepeats,
+            String videoOutput) throws IOException {
+        /*
+         * Frames are encoded and written in the background. Repeated frames
+         * are only encoded once.
+         */
+        try (final FrameCheckpoint checkpoint = videoOutput == null
+                ? new FrameCheckpoint(checkpointFile) : null;
+                final FrameSink sink = videoOutput == null ? new FrameSink() : null;
+                final Y4MFrameSink videoSink = videoOutput == null ? null
+                        : new Y4MFrameSink("-".equals(videoOutput) ? null : new File(videoOutput),
+                                30)) {
+            FramePipeline.FrameWriter<DayPlan> frameWriter = new FramePipeline.FrameWriter<DayPlan>() {
+                @Override
+                public void write(DayPlan day, int frameNo, List<FramePipeline.Frame> frames)
+                        throws IOException {
+                    if (frames.get(0).getImage() != null) {
+                        /*
+                         * Days are written in order, so progress is reported
+                         * here rather than by the render threads. It goes to
+                         * standard error, since standard output may be the
+                         * video.
+                         */
+                        System.err.println("Rendered data for time " + day.time);
+                    }
+                    if (videoSink != null) {
+                        for (FramePipeline.Frame frame : frames) {
+                            videoSink.write(frame.getImage(), frame.getRepeats());
+                        }
+                        return;
+                    }
+                    String step = TimeUtils.dateTimeToISO8601(day.time);
+                    if (frames.get(0).getImage() == null) {
+                        /*
+                         * Already written in a previous run
+                         */
+                        if (checkpoint.getFirstFrame(step) != frameNo) {
+                            throw new IOException("The frames in " + checkpointFile
+                                    + " do not match this run.  Delete it to start again.");
+                        }
+                        return;
+                    }
+                    FrameCheckpoint.Step checkpointStep = checkpoint.startStep(step, frameNo,
+                            frames.size());
+                    for (FramePipeline.Frame frame : frames) {
+                        File[] outFiles = new File[linkRepeats ? frame.getRepeats() : 1];
+                        for (int i = 0; i < outFiles.length; i++) {
+                            outFiles[i] = getFrameFile(framePath, frameNo + i);
+                        }
+                        sink.write(frame.getImage(),
+                                checkpointStep.frame(frameNo, frame.getRepeats()), outFiles);
+                        frameNo += frame.getRepeats();
+                    }
+                }
+            };
+            /*
+             * Days which were completed in a previous run are not gridded or
+             * rendered again. The sliding window catches up with the first
+             * day which does need rendering.
+             */
+            final Map<DayPlan, List<FramePipeline.Frame>> completedDays = new ConcurrentHashMap<>();
+            FramePipeline.ItemPreparer<DayPlan> preparer = new FramePipeline.ItemPreparer<DayPlan>() {
+                @Override
+                public void prepare(DayPlan day) throws IOException {
+                    if (checkpoint != null) {
+                        List<FramePipeline.Frame> completed = checkpoint
+                                .getCompleted(TimeUtils.dateTimeToISO8601(day.time));
+                        if (completed != null) {
+                            completedDays.put(day, completed);
+                            return;
+                        }
+                    }
+                    dataset.prepare("xch4", day.time);
+                }
+            };
+            FramePipeline.FrameRenderer<DayPlan> renderer = new FramePipeline.FrameRenderer<DayPlan>() {
+                @Override
+                public List<FramePipeline.Frame> render(DayPlan day) throws Exception {
+                    List<FramePipeline.Frame> completed = completedDays.remove(day);
+                    if (completed != null) {
+                        return completed;
+                    }
+                    return ch4Renderer.render(day);
+                }
+            };
+            new FramePipeline<DayPlan>(Runtime.getRuntime().availableProcessors()).run(
+                    shard.getSteps(), preparer, renderer, frameWriter, shard.getFirstFrame());
+        }
+    }
+
+    private static File getFrameFile(String framePath, int frameNo) {
+        return new File(framePath + "frame-" + new DecimalFormat("00000").format(frameNo) + ".png");
+    }
+
+    /**
+     * The frames to output for a single day of the CH4 animation
+     */
+    private static class DayPlan implements FramePlan.PlannedStep {
+        final DateTime time;
+        /*
+         * The annotation to draw, or null if there is none
+         */
+        final Annotation annotation;
+        /*
+         * The opacity of the annotation in each rendered frame
+         */
+        final float[] opacities;
+        /*
+         * The number of output frames to show each rendered frame for
+         */
+        final int repeats;
+
+        DayPlan(DateTime time, Annotation annotation, float[] opacities, int repeats) {
+            this.time = time;
+            this.annotation = annotation;
+            this.opacities = opacities;
+            this.repeats = repeats;
+        }
+
+        @Override
+        public int getOutputFrames() {
+            return opacities.length * repeats;
+        }
+    }
+
+    /**
+     * Works out the frames to output for a day of the CH4 animation
+     * 
+     * @param time
+     *            - The day to plan
+     * @return The {@link DayPlan}
+     */
+    private static DayPlan planDay(DateTime time) {
+        List<Annotation> annotations = getAnnotations(time, regions);
+        int maxSlowdown = 10;
+        if (annotations.size() == 0) {
+            return new DayPlan(time, null, new float[] { 1f }, 1);
+        }
+
+        /*
+         * We want to add an annotation to the image and slow it down.
+         */
+        int fadeDays = 8;
+        Annotation annotation = annotations.get(0);
+        /*
+         * Calculate how far we are through the annotation. If we're in the
+         * first/last x%, fade in/out and set the slowdownFactor accordingly to
+         * ramp the speed up/down
+         */
+        int in = Math.abs(Days.daysBetween(annotation.dateRange.getLow(), time).getDays());
+        int out = Math.abs(Days.daysBetween(annotation.dateRange.getHigh(), time).getDays());
+
+        /*
+         * Calculate the opacity if fading in / out
+         */
+        float opacity = 1f;
+        boolean fadeIn = true;
+        if (in < fadeDays) {
+            opacity = ((float) in) / fadeDays;
+        } else if (out < fadeDays) {
+            opacity = ((float) out) / fadeDays;
+            fadeIn = false;
+        }
+
+        if (opacity >= 1) {
+            /*
+             * We are not fading the annotation in/out, just show it
+             */
+            return new DayPlan(time, annotation, new float[] { 1f }, maxSlowdown);
+        }
+
+        /*
+         * Ramp the opacity up / down, one rendered frame per step
+         */
+        int slowdownFactor = 1 + (int) (opacity * maxSlowdown);
+        List<Float> opacities = new ArrayList<>();
+        if (fadeIn) {
+            for (float o = opacity; o < opacity + 1f / fadeDays; o += 1f
+                    / (fadeDays * slowdownFactor)) {
+                opacities.add(o);
+            }
+        } else {
+            for (float o = opacity; o > opacity - 1f / fadeDays; o -= 1f
+                    / (fadeDays * slowdownFactor)) {
+                opacities.add(o);
+            }
+        }
+        float[] ret = new float[opacities.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = opacities.get(i);
+        }
+        return new DayPlan(time, annotation, ret, 1);
+    }
+
+    /**
+     * Renders all of the frames for a single day of the CH4 animation. This can
+     * be used to render several days at once.
+     */
+    private static class CH4FrameRenderer implements FramePipeline.FrameRenderer<DayPlan> {
         /*
          * We want to render at this resolution to fit with the background
          */
-        int width = 1920;
-        int height = 960;
+        private static final int WIDTH = 1920;
+        private static final int HEIGHT = 960;
+
+        /*
+         * The background (branding stuff) and blue marble, which are the same
+         * for every frame
+         */
+        private final BaseLayer baseLayer;
+        private final SegmentColourScheme colourScheme;
+        private final SimpleFeatureCatalogue<GriddedDataset> catalogue;
 
         /*
          * Fonts to use for the annotations. Uses "Effra", which is the UoR
          * standard. Must be installed on the system.
          */
-        Font labelFont = new Font("Effra", Font.PLAIN, height / 24);
-        Font titleFont = new Font("Effra Bold", Font.BOLD, height / 40);
-        Font annotationFont = new Font("Effra Light", Font.PLAIN, height / 40);
-        BasicStroke dashStroke = new BasicStroke(height / 250f, BasicStroke.CAP_BUTT,
-                BasicStroke.JOIN_MITER, 10f, new float[] { 10f, 2f }, 0f);
-        BasicStroke solidStroke = new BasicStroke(height / 250f, BasicStroke.CAP_BUTT,
-                BasicStroke.JOIN_MITER);
+        private final Font labelFont = new Font("Effra", Font.PLAIN, HEIGHT / 24);
+        private final Font titleFont = new Font("Effra Bold", Font.BOLD, HEIGHT / 40);
+        private final Font annotationFont = new Font("Effra Light", Font.PLAIN, HEIGHT / 40);
+        private final BasicStroke dashStroke = new BasicStroke(HEIGHT / 250f,
+                BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10f, new float[] { 10f, 2f }, 0f);
+        private final BasicStroke solidStroke = new BasicStroke(HEIGHT / 250f,
+                BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER);
 
         /*
          * We want the data part of the image to be centred vertically
          */
-        int yoff = (background.getHeight() - height) / 2;
+        private final int yoff;
 
         /*
-         * We output frames with frame numbers rather than datetimes, since we
-         * will sometimes have multiple frames for a single day (when drawing
-         * annotations we slow down the frame rate).
+         * Annotations, drawn once at full opacity, to be faded in and out
          */
-        DecimalFormat frameNoFormat = new DecimalFormat("00000");
-        int frameNo = 0;
-
-        DateTime startTime = timeAxis.getCoordinateValue(0);
-        for (DateTime time : timeAxis.getCoordinateValues()) {
-            if (time.isBefore(startTime)) {
-                continue;
-            }
+        private final Map<Annotation, FadeOverlay> annotationOverlays = new ConcurrentHashMap<>();
 
-            List<Annotation> annotations = getAnnotations(time, regions);
+        public CH4FrameRenderer(BufferedImage background, BufferedImage marble,
+                SegmentColourScheme colourScheme,
+                SimpleFeatureCatalogue<GriddedDataset> catalogue) {
+            this.colourScheme = colourScheme;
+            this.catalogue = catalogue;
+            yoff = (background.getHeight() - HEIGHT) / 2;
 
-            int slowdownFactor;
-            int maxSlowdown = 10;
-            if (annotations.size() == 0) {
-                slowdownFactor = 1;
-            } else {
-                /*
-                 * Slow down if we are displaying an annotation
-                 */
-                slowdownFactor = maxSlowdown;
-            }
-            
             /*
-             * Draw background (branding stuff), and blue marble
+             * Draw background (branding stuff), and blue marble once
              */
-            BufferedImage outImage = new BufferedImage(background.getWidth(),
+            BufferedImage composite = new BufferedImage(background.getWidth(),
                     background.getHeight(), BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g = outImage.createGraphics();
+            Graphics2D g = composite.createGraphics();
             g.drawImage(background, 0, 0, background.getWidth(), background.getHeight(), null);
-            g.drawImage(marble, 0, yoff, width, height, null);
+            g.drawImage(marble, 0, yoff, WIDTH, HEIGHT, null);
+            g.dispose();
+            baseLayer = new BaseLayer(composite);
+        }
+
+        @Override
+        public List<FramePipeline.Frame> render(DayPlan day) throws EdalException {
+            int width = WIDTH;
+            int height = HEIGHT;
+            DateTime time = day.time;
+            List<FramePipeline.Frame> frames = new ArrayList<>();
+
+            /*
+             * Start from a copy of the background and blue marble
+             */
+            BufferedImage outImage = baseLayer.newFrame();
+            Graphics2D g = outImage.createGraphics();
+
+            /*
+             * Create an image generator with a single raster layer. This is
+             * cheap, and means that no state is shared between threads.
+             */
+            MapImage imageGen = new MapImage();
+            imageGen.getLayers().add(new RasterLayer("xch4", colourScheme));
 
             /*
              * Render the data image
@@ -493,99 +1710,57 @@ public class GOSATGriddedDataset extends GriddedDataset {
             g.drawString(TimeUtils.formatUtcDateOnly(time), width / 2 - stringOffsetX,
                     yoff + height + stringOffsetY);
 
-            if (annotations.size() > 0) {
-                /*
-                 * We want to add an annotation to the image and slow it down.
-                 */
-                g.setFont(annotationFont);
-
-                RegularGrid imageGrid = params.getImageGrid();
-                int fadeDays = 8;
-                Annotation annotation = annotations.get(0);
+            RegularGrid imageGrid = params.getImageGrid();
+            if (day.annotation == null) {
+                frames.add(new FramePipeline.Frame(outImage, day.repeats));
+            } else if (day.opacities.length == 1 && day.opacities[0] >= 1) {
                 /*
-                 * Calculate how far we are through the annotation. If we're in
-                 * the first/last x%, fade in/out and set the slowdownFactor
-                 * accordingly to ramp the speed up/down
+                 * We are not fading the annotation in/out, just draw it
                  */
-                int in = Math.abs(Days.daysBetween(annotation.dateRange.getLow(), time).getDays());
-                int out = Math
-                        .abs(Days.daysBetween(annotation.dateRange.getHigh(), time).getDays());
-
+                drawAnnotation(day.annotation, g, imageGrid, titleFont, annotationFont,
+                        dashStroke, solidStroke, 1f);
+                frames.add(new FramePipeline.Frame(outImage, day.repeats));
+            } else {
                 /*
-                 * Calculate the opacity if fading in / out
+                 * Each step of the fade starts from a copy of this frame and
+                 * only blends the area covered by the annotation.
                  */
-                float opacity = 1f;
-                boolean fadeIn = true;
-                if (in < fadeDays) {
-                    opacity = ((float) in) / fadeDays;
-                } else if (out < fadeDays) {
-                    opacity = ((float) out) / fadeDays;
-                    fadeIn = false;
-                }
-
-                if (opacity < 1) {
-                    slowdownFactor = 1 + (int) (opacity * maxSlowdown);
-
-                    /*
-                     * Ramp the opacity up / down
-                     */
-                    if (fadeIn) {
-                        for (float o = opacity; o < opacity + 1f / fadeDays; o += 1f
-                                / (fadeDays * slowdownFactor)) {
-                            BufferedImage fadeImage = new BufferedImage(outImage.getWidth(),
-                                    outImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
-                            Graphics2D g2 = fadeImage.createGraphics();
-                            g2.drawImage(outImage, 0, 0, outImage.getWidth(), outImage.getHeight(),
-                                    null);
-                            drawAnnotation(annotation, g2, imageGrid, titleFont, annotationFont,
-                                    dashStroke, solidStroke, o);
-                            File outFile = new File(
-                                    outPath + "frame-" + frameNoFormat.format(frameNo++) + ".png");
-                            ImageIO.write(fadeImage, "png", outFile);
-                        }
-                        System.out.println("Written data for time " + time);
-                        continue;
-                    } else {
-                        for (float o = opacity; o > opacity - 1f / fadeDays; o -= 1f
-                                / (fadeDays * slowdownFactor)) {
-                            BufferedImage fadeImage = new BufferedImage(outImage.getWidth(),
-                                    outImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
-                            Graphics2D g2 = fadeImage.createGraphics();
-                            g2.drawImage(outImage, 0, 0, outImage.getWidth(), outImage.getHeight(),
-                                    null);
-                            drawAnnotation(annotation, g2, imageGrid, titleFont, annotationFont,
-                                    dashStroke, solidStroke, o);
-                            File outFile = new File(
-                                    outPath + "frame-" + frameNoFormat.format(frameNo++) + ".png");
-                            ImageIO.write(fadeImage, "png", outFile);
-                        }
-                        System.out.println("Written data for time " + time);
-                        continue;
-                    }
-                } else {
-                    /*
-                     * We are not fading the annotation in/out, just draw it
-                     */
-                    slowdownFactor = maxSlowdown;
-                    drawAnnotation(annotation, g, imageGrid, titleFont, annotationFont, dashStroke,
-                            solidStroke, 1f);
+                BaseLayer dayFrame = new BaseLayer(outImage);
+                FadeOverlay overlay = getAnnotationOverlay(day.annotation, imageGrid);
+                for (float o : day.opacities) {
+                    frames.add(new FramePipeline.Frame(fadeFrame(dayFrame, overlay, o),
+                            day.repeats));
                 }
             }
+            g.dispose();
 
-            File outFile = new File(outPath + "frame-" + frameNoFormat.format(frameNo++) + ".png");
-            ImageIO.write(outImage, "png", outFile);
-            for (int i = 1; i < slowdownFactor; i++) {
-                FileUtils.copyFile(outFile,
-                        new File(outPath + "frame-" + frameNoFormat.format(frameNo++) + ".png"));
-            }
-            System.out.println("Written data for time " + time);
+            return frames;
         }
 
-        System.out.println("Finished writing frames.  Now run:\nffmpeg -r 30 -i '" + outPath
-                + "frame-%05d.png' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
-
-        System.out.println("FINISHED: " + new DateTime());
+        private BufferedImage fadeFrame(BaseLayer dayFrame, FadeOverlay overlay, float opacity) {
+            /*
+             * Each frame needs its own image, since it is written out in the
+             * background
+             */
+            BufferedImage fadeImage = dayFrame.newFrame();
+            overlay.drawOnto(fadeImage, opacity);
+            return fadeImage;
+        }
 
+        private FadeOverlay getAnnotationOverlay(Annotation annotation, RegularGrid imageGrid) {
+            FadeOverlay overlay = annotationOverlays.get(annotation);
+            if (overlay == null) {
+                BufferedImage layer = new BufferedImage(baseLayer.getWidth(),
+                        baseLayer.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = layer.createGraphics();
+                drawAnnotation(annotation, g, imageGrid, titleFont, annotationFont, dashStroke,
+                        solidStroke, 1f);
+                g.dispose();
+                overlay = new FadeOverlay(layer);
+                annotationOverlays.put(annotation, overlay);
+            }
+            return overlay;
+        }
     }
 
     /**
@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+
+/**
+ * A compact binary store of pre-binned L2 data points, which is
+ * memory-mapped for reading.
+ * 
+ * This holds only the good quality points of a single variable, already
+ * binned onto a grid, so that re-rendering the same data does not require
+ * re-reading and re-filtering thousands of NetCDF files.
+ * 
+ * The file format is:
+ * 
+ * <pre>
+ * header:  magic (int), version (int), xSize (int), ySize (int), nDays (int), indexOffset (long),
+ *          sourcesOffset (long)
+ * data:    for each day, its cell indices (int[count]) followed by its values (float[count])
+ * index:   for each day, the offset of its data (long) and its count (int)
+ * sources: for each day, the length of its file's path (int), the path (UTF-8), and the
+ *          file's size (long) and modification time (long) when it was read
+ * </pre>
+ *
+ * @author Guy Griffiths
+ */
+public class GOSATPointStore {
+    private static final int MAGIC = 0x47505331;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 5 * 4 + 2 * 8;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4;
+
+    private final int xSize;
+    private final int ySize;
+    private final int nDays;
+    private final MappedByteBuffer buffer;
+    private final long indexOffset;
+
+    private GOSATPointStore(File storeFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(storeFile.toPath(),
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new EdalException("Point store " + storeFile
+                        + " is too large to map.  Use a separate store for a shorter time range.");
+            }
+            buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new EdalException(storeFile + " is not a valid point store");
+        }
+        xSize = buffer.getInt(8);
+        ySize = buffer.getInt(12);
+        nDays = buffer.getInt(16);
+        indexOffset = buffer.getLong(20);
+    }
+
+    /**
+     * Opens an existing point store for reading
+     * 
+     * @param storeFile
+     *            - The store to open
+     * @return The opened {@link GOSATPointStore}
+     * @throws IOException
+     *             If there is a problem reading the store
+     */
+    public static GOSATPointStore open(File storeFile) throws IOException {
+        return new GOSATPointStore(storeFile);
+    }
+
+    /**
+     * Tests whether a point store exists and was created from exactly the
+     * given L2 files, i.e. the same paths, in the same order, with the same
+     * sizes and modification times.
+     * 
+     * @param storeFile
+     *            - The location of the store
+     * @param files
+     *            - The sorted list of L2 files
+     * @param horizontalGrid
+     *            - The grid which the points should be binned onto
+     * @return <code>true</code> if the store can be used as-is
+     */
+    public static boolean isValid(File storeFile, List<File> files,
+            HorizontalGrid horizontalGrid) {
+        if (!storeFile.exists()) {
+            return false;
+        }
+        /*
+         * Only the header and the list of sources are read, so the store is
+         * not mapped
+         */
+        try (FileChannel channel = FileChannel.open(storeFile.toPath(),
+                StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                    || header.getInt(8) != horizontalGrid.getXSize()
+                    || header.getInt(12) != horizontalGrid.getYSize()
+                    || header.getInt(16) != files.size()) {
+                return false;
+            }
+            long sourcesOffset = header.getLong(28);
+            ByteBuffer expected = describeSources(files);
+            if (channel.size() - sourcesOffset != expected.capacity()) {
+                return false;
+            }
+            ByteBuffer stored = ByteBuffer.allocate(expected.capacity());
+            readFully(channel, stored, sourcesOffset);
+            return stored.equals(expected);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Describes the files which a store is created from, so that any change
+     * to them can be detected
+     * 
+     * @param files
+     *            - The sorted list of L2 files
+     * @return The sources section of a store, ready to be written
+     */
+    private static ByteBuffer describeSources(List<File> files) {
+        List<byte[]> paths = new ArrayList<>();
+        int size = 0;
+        for (File file : files) {
+            byte[] path = file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+            paths.add(path);
+            size += 4 + path.length + 2 * 8;
+        }
+        ByteBuffer sources = ByteBuffer.allocate(size);
+        for (int d = 0; d < files.size(); d++) {
+            sources.putInt(paths.get(d).length);
+            sources.put(paths.get(d));
+            sources.putLong(files.get(d).length());
+            sources.putLong(files.get(d).lastModified());
+        }
+        sources.flip();
+        return sources;
+    }
+
+    /**
+     * Reads a set of L2 files and writes the good quality points of a
+     * variable into a new point store, replacing any existing one.
+     * 
+     * @param files
+     *            - The sorted list of L2 files. Each file is stored as one day.
+     * @param variableId
+     *            - The variable to store
+     * @param horizontalGrid
+     *            - The grid to bin the points onto
+     * @param storeFile
+     *            - The location to write the store to
+     * @throws IOException
+     *             If there is a problem writing the store
+     */
+    public static void ingest(List<File> files, final String variableId,
+            final HorizontalGrid horizontalGrid, File storeFile) throws IOException {
+        int nDays = files.size();
+        long[] offsets = new long[nDays];
+        int[] counts = new int[nDays];
+        /*
+         * Record the files as they are before reading them, so that any which
+         * change during the ingest make the store invalid
+         */
+        ByteBuffer sources = describeSources(files);
+
+        /*
+         * Write to a temporary file first, so that an interrupted ingest never
+         * leaves a truncated store behind
+         */
+        File tmpFile = new File(storeFile.getPath() + ".tmp");
+        /*
+         * Read upcoming files in the background whilst each day is written
+         */
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                Prefetcher<File, BinnedPoints> prefetcher = new Prefetcher<>(files,
+                        new Prefetcher.Loader<File, BinnedPoints>() {
+                            @Override
+                            public BinnedPoints load(File file) {
+                                return BinnedPoints.read(file, variableId, horizontalGrid);
+                            }
+
+                            @Override
+                            public long getSize(BinnedPoints points) {
+                                return 8L * points.size;
+                            }
+                        })) {
+            long position = HEADER_SIZE;
+            for (int d = 0; d < nDays; d++) {
+                BinnedPoints points = prefetcher.next();
+                ByteBuffer dayBuffer = ByteBuffer.allocate(8 * points.size);
+                dayBuffer.asIntBuffer().put(points.cells, 0, points.size);
+                dayBuffer.position(4 * points.size);
+                dayBuffer.asFloatBuffer().put(points.values, 0, points.size);
+                dayBuffer.rewind();
+                writeFully(channel, dayBuffer, position);
+
+                offsets[d] = position;
+                counts[d] = points.size;
+                position += dayBuffer.capacity();
+            }
+
+            ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_SIZE * nDays);
+            for (int d = 0; d < nDays; d++) {
+                index.putLong(offsets[d]);
+                index.putInt(counts[d]);
+            }
+            index.flip();
+            long indexOffset = position;
+            writeFully(channel, index, indexOffset);
+            long sourcesOffset = indexOffset + index.capacity();
+            writeFully(channel, sources, sourcesOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(horizontalGrid.getXSize());
+            header.putInt(horizontalGrid.getYSize());
+            header.putInt(nDays);
+            header.putLong(indexOffset);
+            header.putLong(sourcesOffset);
+            header.flip();
+            writeFully(channel, header, 0);
+        }
+        Files.move(tmpFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of point store");
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * @return The number of days held in this store
+     */
+    public int getNDays() {
+        return nDays;
+    }
+
+    /**
+     * Gets the binned points for a single day
+     * 
+     * @param day
+     *            - The index of the day, which is the index of the file it
+     *            was ingested from
+     * @return The {@link BinnedPoints} for the day
+     */
+    public BinnedPoints getDay(int day) {
+        if (day < 0 || day >= nDays) {
+            throw new EdalException("Day " + day + " is not in the point store");
+        }
+        int entry = (int) (indexOffset + (long) day * INDEX_ENTRY_SIZE);
+        int offset = (int) buffer.getLong(entry);
+        int count = buffer.getInt(entry + 8);
+
+        BinnedPoints points = new BinnedPoints(count);
+        ByteBuffer dayBuffer = buffer.duplicate();
+        dayBuffer.position(offset);
+        IntBuffer cells = dayBuffer.slice().asIntBuffer();
+        cells.get(points.cells, 0, count);
+        dayBuffer.position(offset + 4 * count);
+        dayBuffer.slice().asFloatBuffer().get(points.values, 0, count);
+        points.size = count;
+        return points;
+    }
+}
@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.util.Arrays;
+
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * Accumulates the sums and counts of values falling into the cells of a 2D
+ * grid, so that the mean value of each cell can be calculated.
+ * 
+ * Sums and counts are held in flat primitive arrays, indexed by
+ * <code>y * xSize + x</code>, so that adding a value does not create any
+ * objects. Values are added to single cells, and can be spread out into
+ * neighbouring cells afterwards with {@link #bleed(int)}.
+ *
+ * @author Guy Griffiths
+ */
+public class GridAccumulator {
+    private final int xSize;
+    private final int ySize;
+    private final double[] sums;
+    private final int[] counts;
+
+    /**
+     * Create a new, empty {@link GridAccumulator}
+     * 
+     * @param xSize
+     *            - The size of the grid in the x-dimension
+     * @param ySize
+     *            - The size of the grid in the y-dimension
+     */
+    public GridAccumulator(int xSize, int ySize) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.sums = new double[xSize * ySize];
+        this.counts = new int[xSize * ySize];
+    }
+
+    public int getXSize() {
+        return xSize;
+    }
+
+    public int getYSize() {
+        return ySize;
+    }
+
+    /**
+     * Adds a value to a single cell
+     * 
+     * @param cell
+     *            - The index of the cell, <code>y * xSize + x</code>
+     * @param value
+     *            - The value to add. Use a negative value and count to remove
+     *            a previously-added value.
+     * @param count
+     *            - The number to add to the count of the cell
+     */
+    public void add(int cell, double value, int count) {
+        sums[cell] += value;
+        counts[cell] += count;
+    }
+
+    /**
+     * Adds all of the sums and counts of another grid into this one
+     * 
+     * @param other
+     *            - The {@link GridAccumulator} to add. Must be the same size
+     *            as this one.
+     */
+    public void merge(GridAccumulator other) {
+        if (other.xSize != xSize || other.ySize != ySize) {
+            throw new IllegalArgumentException("Cannot merge grids of different sizes");
+        }
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] += other.sums[i];
+            counts[i] += other.counts[i];
+        }
+    }
+
+    /**
+     * Bleeds the values in this grid out into the surrounding cells.
+     * 
+     * Each cell of the result holds the sums and counts of all of the cells
+     * within <code>bleed</code> cells of it in each direction, so that its
+     * mean is the average of all of the values which would have been added to
+     * it if each value had been added to its whole neighbourhood. The
+     * neighbourhood wraps around in the x-direction, and is clipped at the
+     * edges of the grid in the y-direction.
+     * 
+     * This is done as two separable passes of a running box sum, so takes the
+     * same time whatever the size of the bleed.
+     * 
+     * @param bleed
+     *            - The number of cells in each direction to bleed values into
+     * @return A new {@link GridAccumulator} containing the bled values, or
+     *         this one if <code>bleed</code> is zero. This one is not
+     *         modified.
+     */
+    public GridAccumulator bleed(int bleed) {
+        if (bleed <= 0) {
+            return this;
+        }
+        return bleed(bleed, new GridAccumulator(xSize, ySize), new GridAccumulator(xSize, ySize));
+    }
+
+    /**
+     * Bleeds the values in this grid out into the surrounding cells, reusing
+     * existing grids rather than allocating new ones. This is the same as
+     * {@link GridAccumulator#bleed(int)}, but is cheaper when bleeding many
+     * grids of the same size in turn.
+     * 
+     * @param bleed
+     *            - The number of cells in each direction to bleed values into
+     * @param scratch
+     *            - A grid to use for working. Its contents are overwritten.
+     * @param target
+     *            - The grid to write the bled values into. Its contents are
+     *            overwritten.
+     * @return <code>target</code>, or this grid if <code>bleed</code> is
+     *         zero. This one is not modified.
+     */
+    public GridAccumulator bleed(int bleed, GridAccumulator scratch, GridAccumulator target) {
+        if (bleed <= 0) {
+            return this;
+        }
+        if (scratch.xSize != xSize || scratch.ySize != ySize || target.xSize != xSize
+                || target.ySize != ySize) {
+            throw new IllegalArgumentException("Cannot bleed into grids of different sizes");
+        }
+        GridAccumulator rows = scratch;
+        /*
+         * Sum along each row, wrapping around
+         */
+        for (int y = 0; y < ySize; y++) {
+            int rowStart = y * xSize;
+            double sum = 0.0;
+            int count = 0;
+            for (int xi = -bleed; xi <= bleed; xi++) {
+                int x = wrapX(xi);
+                sum += sums[rowStart + x];
+                count += counts[rowStart + x];
+            }
+            for (int x = 0; x < xSize; x++) {
+                rows.sums[rowStart + x] = sum;
+                rows.counts[rowStart + x] = count;
+                int out = rowStart + wrapX(x - bleed);
+                int in = rowStart + wrapX(x + bleed + 1);
+                sum += sums[in] - sums[out];
+                count += counts[in] - counts[out];
+            }
+        }
+
+        GridAccumulator ret = target;
+        /*
+         * Sum the row sums down each column, clipping at the edges. We keep a
+         * running total for every column at once so that we only ever run
+         * along rows of the arrays.
+         */
+        double[] colSums = new double[xSize];
+        int[] colCounts = new int[xSize];
+        for (int y = 0; y <= bleed && y < ySize; y++) {
+            addRow(rows, y, colSums, colCounts, 1);
+        }
+        for (int y = 0; y < ySize; y++) {
+            System.arraycopy(colSums, 0, ret.sums, y * xSize, xSize);
+            System.arraycopy(colCounts, 0, ret.counts, y * xSize, xSize);
+            if (y + bleed + 1 < ySize) {
+                addRow(rows, y + bleed + 1, colSums, colCounts, 1);
+            }
+            if (y - bleed >= 0) {
+                addRow(rows, y - bleed, colSums, colCounts, -1);
+            }
+        }
+        return ret;
+    }
+
+    private int wrapX(int x) {
+        x %= xSize;
+        return x < 0 ? x + xSize : x;
+    }
+
+    private static void addRow(GridAccumulator grid, int y, double[] colSums, int[] colCounts,
+            int sign) {
+        int rowStart = y * grid.xSize;
+        for (int x = 0; x < grid.xSize; x++) {
+            colSums[x] += sign * grid.sums[rowStart + x];
+            colCounts[x] += sign * grid.counts[rowStart + x];
+        }
+    }
+
+    /**
+     * Resets all of the sums and counts to zero
+     */
+    public void clear() {
+        Arrays.fill(sums, 0.0);
+        Arrays.fill(counts, 0);
+    }
+
+    /**
+     * Calculates the mean of the values of all cells which have a value,
+     * within a rectangular region
+     * 
+     * @param xMask
+     *            - Which columns are in the region, or <code>null</code> for
+     *            all of them
+     * @param yMask
+     *            - Which rows are in the region, or <code>null</code> for all
+     *            of them
+     * @return The mean of the cell values in the region, or {@link Double#NaN}
+     *         if there are none
+     */
+    public double mean(boolean[] xMask, boolean[] yMask) {
+        double sum = 0.0;
+        int n = 0;
+        for (int y = 0; y < ySize; y++) {
+            if (yMask != null && !yMask[y]) {
+                continue;
+            }
+            int rowStart = y * xSize;
+            for (int x = 0; x < xSize; x++) {
+                int count = counts[rowStart + x];
+                if (count > 0 && (xMask == null || xMask[x])) {
+                    sum += sums[rowStart + x] / count;
+                    n++;
+                }
+            }
+        }
+        return sum / n;
+    }
+
+    /**
+     * Writes the mean value of each cell into the target array. Cells which
+     * have nothing in them are left untouched.
+     * 
+     * @param target
+     *            - The {@link Array4D} to write the means into. Its x- and
+     *            y-sizes must match those of this grid.
+     * @param t
+     *            - The time index in the target to write to
+     * @param z
+     *            - The z index in the target to write to
+     * @return The mean of all of the cells which have a value, or
+     *         {@link Double#NaN} if there are none
+     */
+    public double fill(Array4D<Number> target, int t, int z) {
+        double sum = 0.0;
+        int n = 0;
+        for (int y = 0; y < ySize; y++) {
+            int rowStart = y * xSize;
+            for (int x = 0; x < xSize; x++) {
+                int count = counts[rowStart + x];
+                if (count > 0) {
+                    double pointVal = sums[rowStart + x] / count;
+                    target.set(pointVal, t, z, y, x);
+                    sum += pointVal;
+                    n++;
+                }
+            }
+        }
+        return sum / n;
+    }
+}
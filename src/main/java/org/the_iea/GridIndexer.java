@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
+/**
+ * Finds the grid cells which lon/lat positions fall into.
+ * 
+ * For regular grids in lon/lat, the cell index is calculated directly from
+ * the axis spacing, which avoids creating a {@link HorizontalPosition} for
+ * every point and going through the general CRS-aware
+ * {@link HorizontalGrid#findIndexOf(HorizontalPosition)}. Any other grids fall
+ * back to that method.
+ *
+ * @author Guy Griffiths
+ */
+public class GridIndexer {
+    /*
+     * How close (in cells) a position must be to the edge of the grid to be
+     * counted as on it. This allows for rounding errors in the axis spacing.
+     */
+    private static final double EDGE_TOLERANCE = 1e-6;
+
+    private final HorizontalGrid grid;
+    private final int xSize;
+    private final int ySize;
+
+    /*
+     * Only used for regular lon/lat grids
+     */
+    private final boolean regular;
+    private final double xFirst;
+    private final double xSpacing;
+    private final double xMin;
+    private final double yFirst;
+    private final double ySpacing;
+
+    /**
+     * Create a new {@link GridIndexer}
+     * 
+     * @param grid
+     *            - The grid to find cell indices in
+     */
+    public GridIndexer(HorizontalGrid grid) {
+        this.grid = grid;
+        this.xSize = grid.getXSize();
+        this.ySize = grid.getYSize();
+
+        if (grid instanceof RegularGrid
+                && GISUtils.isWgs84LonLat(grid.getCoordinateReferenceSystem())) {
+            RegularAxis xAxis = ((RegularGrid) grid).getXAxis();
+            RegularAxis yAxis = ((RegularGrid) grid).getYAxis();
+            regular = true;
+            xFirst = xAxis.getCoordinateValue(0);
+            xSpacing = xAxis.getCoordinateSpacing();
+            yFirst = yAxis.getCoordinateValue(0);
+            ySpacing = yAxis.getCoordinateSpacing();
+            /*
+             * The lower edge of the x-axis. Longitudes get wrapped into the
+             * 360 degrees above this.
+             */
+            xMin = Math.min(xFirst, xFirst + (xSize - 1) * xSpacing) - Math.abs(xSpacing) / 2.0;
+        } else {
+            regular = false;
+            xFirst = 0.0;
+            xSpacing = 0.0;
+            xMin = 0.0;
+            yFirst = 0.0;
+            ySpacing = 0.0;
+        }
+    }
+
+    public int getXSize() {
+        return xSize;
+    }
+
+    public int getYSize() {
+        return ySize;
+    }
+
+    /**
+     * Finds the cell which a position falls into
+     * 
+     * @param lon
+     *            - The longitude of the position
+     * @param lat
+     *            - The latitude of the position
+     * @return The index of the cell, <code>y * xSize + x</code>, or -1 if the
+     *         position is outside of the grid
+     */
+    public int cellIndexOf(double lon, double lat) {
+        if (!regular) {
+            GridCoordinates2D coords = grid.findIndexOf(new HorizontalPosition(lon, lat));
+            if (coords == null) {
+                return -1;
+            }
+            return coords.getY() * xSize + coords.getX();
+        }
+
+        if (Double.isNaN(lon) || Double.isNaN(lat)) {
+            return -1;
+        }
+        double wrappedLon = lon - xMin;
+        if (wrappedLon < 0.0 || wrappedLon >= 360.0) {
+            wrappedLon -= 360.0 * Math.floor(wrappedLon / 360.0);
+        }
+        long x = toIndex((xMin + wrappedLon - xFirst) / xSpacing, xSize);
+        long y = toIndex((lat - yFirst) / ySpacing, ySize);
+        if (x < 0 || x >= xSize || y < 0 || y >= ySize) {
+            return -1;
+        }
+        return (int) y * xSize + (int) x;
+    }
+
+    /**
+     * Converts a position along an axis to a cell index
+     * 
+     * @param position
+     *            - The position, in units of cells from the centre of the
+     *            first cell
+     * @param size
+     *            - The number of cells on the axis
+     * @return The index of the cell. Positions on the outer edges of the axis
+     *         (e.g. latitude 90) are in the end cells, as they are with
+     *         {@link HorizontalGrid#findIndexOf(HorizontalPosition)}.
+     */
+    private static long toIndex(double position, int size) {
+        long index = Math.round(position);
+        if (index == size && position - (size - 0.5) <= EDGE_TOLERANCE) {
+            return size - 1;
+        } else if (index == -1 && position >= -0.5 - EDGE_TOLERANCE) {
+            return 0;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+
+/**
+ * A time series of the mean gridded value of a variable, globally and within
+ * any number of named regions.
+ * 
+ * Means are calculated in the same way as when the data is plotted, i.e. they
+ * are the mean of all grid cells which have a value once the data has been
+ * averaged over time and bled into neighbouring cells.
+ *
+ * @author Guy Griffiths
+ */
+public class MeanTimeSeries {
+    /**
+     * The name of the region covering the whole grid
+     */
+    public static final String GLOBAL = "global";
+
+    private final String variableId;
+    private final List<DateTime> times;
+    private final List<String> regionNames;
+    private final double[][] means;
+
+    /**
+     * @param variableId
+     *            - The ID of the variable which the means are of
+     * @param times
+     *            - The times of the series
+     * @param regionNames
+     *            - The names of the regions, the first of which should be
+     *            {@link MeanTimeSeries#GLOBAL}
+     * @param means
+     *            - The means, indexed by region then by time. A mean is
+     *            {@link Double#NaN} if there is no data.
+     */
+    MeanTimeSeries(String variableId, List<DateTime> times, List<String> regionNames,
+            double[][] means) {
+        this.variableId = variableId;
+        this.times = times;
+        this.regionNames = regionNames;
+        this.means = means;
+    }
+
+    public String getVariableId() {
+        return variableId;
+    }
+
+    public List<DateTime> getTimes() {
+        return Collections.unmodifiableList(times);
+    }
+
+    public List<String> getRegionNames() {
+        return Collections.unmodifiableList(regionNames);
+    }
+
+    /**
+     * @param regionName
+     *            - The name of the region
+     * @return The means within the region at each time. A mean is
+     *         {@link Double#NaN} if there is no data.
+     */
+    public double[] getMeans(String regionName) {
+        int r = regionNames.indexOf(regionName);
+        if (r < 0) {
+            throw new IllegalArgumentException("No region named " + regionName);
+        }
+        return means[r].clone();
+    }
+
+    /**
+     * Writes the series as CSV, with a column for the time and one for each
+     * region. Times with no data in a region are left empty.
+     * 
+     * @param file
+     *            - The file to write to
+     * @throws IOException
+     *             If there is a problem writing the file
+     */
+    public void writeCsv(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            StringBuilder line = new StringBuilder("time");
+            for (String regionName : regionNames) {
+                line.append(",\"").append(regionName.replace("\"", "\"\"")).append("\"");
+            }
+            writer.println(line);
+            for (int t = 0; t < times.size(); t++) {
+                line = new StringBuilder(TimeUtils.dateTimeToISO8601(times.get(t)));
+                for (int r = 0; r < regionNames.size(); r++) {
+                    line.append(",");
+                    if (!Double.isNaN(means[r][t])) {
+                        line.append(means[r][t]);
+                    }
+                }
+                writer.println(line);
+            }
+        }
+    }
+
+    /**
+     * Writes the series in a compact big-endian binary form:
+     * 
+     * <pre>
+     * nRegions (int), nTimes (int)
+     * region names (modified UTF-8, as written by DataOutput.writeUTF)
+     * times (long[nTimes], milliseconds since the epoch)
+     * means (double[nTimes] for each region, NaN where there is no data)
+     * </pre>
+     * 
+     * @param file
+     *            - The file to write to
+     * @throws IOException
+     *             If there is a problem writing the file
+     */
+    public void writeBinary(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(regionNames.size());
+            out.writeInt(times.size());
+            for (String regionName : regionNames) {
+                out.writeUTF(regionName);
+            }
+            for (DateTime time : times) {
+                out.writeLong(time.getMillis());
+            }
+            for (double[] regionMeans : means) {
+                for (double mean : regionMeans) {
+                    out.writeDouble(mean);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes images as PNG, reading the pixels directly from the
+ * {@link DataBufferInt} of {@link BufferedImage#TYPE_INT_ARGB} and
+ * {@link BufferedImage#TYPE_INT_RGB} images.
+ * 
+ * This is faster than {@link javax.imageio.ImageIO} because the compression
+ * level and row filter can be chosen (frames which only feed a video encoder
+ * don't need to be small), images with no transparency are written without an
+ * alpha channel, and the image can be compressed in parallel.
+ * 
+ * Parallel compression works in the same way as pigz: the image is split into
+ * blocks of rows which are compressed independently, each using the end of the
+ * previous block as its dictionary, and the results are joined into a single
+ * zlib stream.
+ *
+ * @author Guy Griffiths
+ */
+public class PngEncoder {
+    /**
+     * The PNG row filter to use
+     */
+    public enum Filter {
+        NONE(0), SUB(1), UP(2), AVERAGE(3), PAETH(4),
+        /**
+         * Choose the best filter for each row. This gives the smallest files,
+         * but is the slowest.
+         */
+        ADAPTIVE(-1);
+
+        private final int type;
+
+        private Filter(int type) {
+            this.type = type;
+        }
+    }
+
+    private static final byte[] SIGNATURE = new byte[] { (byte) 137, 80, 78, 71, 13, 10, 26,
+            10 };
+    /*
+     * The approximate amount of image data to compress in each block when
+     * compressing in parallel, and the size of the deflate dictionary
+     */
+    private static final int BLOCK_BYTES = 1 << 18;
+    private static final int DICTIONARY_BYTES = 1 << 15;
+
+    private final int level;
+    private final Filter filter;
+    private final boolean parallel;
+
+    /**
+     * Creates an encoder suitable for intermediate frames: fast compression,
+     * the "up" filter, and compressing in parallel
+     */
+    public PngEncoder() {
+        this(1, Filter.UP, true);
+    }
+
+    /**
+     * @param level
+     *            - The deflate compression level, from 0 (none) to 9 (best)
+     * @param filter
+     *            - The row {@link Filter} to use
+     * @param parallel
+     *            - Whether to compress each image on multiple threads
+     */
+    public PngEncoder(int level, Filter filter, boolean parallel) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        }
+        this.level = level;
+        this.filter = filter;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Encodes an image as PNG
+     * 
+     * @param image
+     *            - The image to encode. Images which are not
+     *            {@link BufferedImage#TYPE_INT_ARGB} or
+     *            {@link BufferedImage#TYPE_INT_RGB} are converted first.
+     * @param out
+     *            - The {@link OutputStream} to write the PNG to
+     */
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        Pixels pixels = new Pixels(image);
+        int rowBytes = pixels.width * pixels.bpp;
+
+        /*
+         * Compress the image in blocks of whole rows
+         */
+        int rowsPerBlock = pixels.height;
+        if (parallel) {
+            rowsPerBlock = Math.max(1, BLOCK_BYTES / (rowBytes + 1));
+        }
+        List<DeflateBlock> blocks = new ArrayList<>();
+        for (int y = 0; y < pixels.height; y += rowsPerBlock) {
+            blocks.add(new DeflateBlock(pixels, y, Math.min(y + rowsPerBlock, pixels.height)));
+        }
+        if (blocks.size() > 1) {
+            for (DeflateBlock block : blocks) {
+                block.fork();
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(pixels.width);
+        headerData.writeInt(pixels.height);
+        /*
+         * 8 bits per channel, RGB or RGBA, standard compression and filtering,
+         * no interlacing
+         */
+        headerData.writeByte(8);
+        headerData.writeByte(pixels.alpha ? 6 : 2);
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        writeChunk(data, "IHDR", header.toByteArray());
+
+        /*
+         * The zlib header, then each compressed block, then the checksum of all
+         * of the filtered data
+         */
+        writeChunk(data, "IDAT", new byte[] { 0x78, zlibFlags() });
+        long adler = 1;
+        for (DeflateBlock block : blocks) {
+            byte[] compressed = blocks.size() > 1 ? block.join() : block.compute();
+            writeChunk(data, "IDAT", compressed);
+            adler = combineAdler(adler, block.adler, block.length);
+        }
+        writeChunk(data, "IDAT", new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16),
+                (byte) (adler >>> 8), (byte) adler });
+        writeChunk(data, "IEND", new byte[0]);
+        data.flush();
+    }
+
+    private byte zlibFlags() {
+        /*
+         * These include the compression level hint and make the header a
+         * multiple of 31
+         */
+        if (level <= 1) {
+            return 0x01;
+        } else if (level <= 5) {
+            return 0x5E;
+        } else if (level == 6) {
+            return (byte) 0x9C;
+        } else {
+            return (byte) 0xDA;
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive pieces of data, in the
+     * same way as zlib's adler32_combine
+     */
+    private static long combineAdler(long adler1, long adler2, long length2) {
+        long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Direct access to the pixels of an image
+     */
+    private static class Pixels {
+        final int[] data;
+        final int offset;
+        final int stride;
+        final int width;
+        final int height;
+        final boolean alpha;
+        final int bpp;
+
+        Pixels(BufferedImage image) {
+            if (image.getType() != BufferedImage.TYPE_INT_ARGB
+                    && image.getType() != BufferedImage.TYPE_INT_RGB) {
+                BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                        BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = converted.createGraphics();
+                g.drawImage(image, 0, 0, null);
+                g.dispose();
+                image = converted;
+            }
+            WritableRaster raster = image.getRaster();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            data = buffer.getData();
+            stride = ((SinglePixelPackedSampleModel) raster.getSampleModel())
+                    .getScanlineStride();
+            /*
+             * Allow for images which are a part of a larger image
+             */
+            offset = buffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX();
+            width = image.getWidth();
+            height = image.getHeight();
+            alpha = image.getType() == BufferedImage.TYPE_INT_ARGB && hasTransparency();
+            bpp = alpha ? 4 : 3;
+        }
+
+        private boolean hasTransparency() {
+            for (int y = 0; y < height; y++) {
+                int rowStart = offset + y * stride;
+                for (int i = rowStart; i < rowStart + width; i++) {
+                    if ((data[i] >>> 24) != 0xff) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Writes the unfiltered bytes of a row
+         */
+        void getRow(int y, byte[] row) {
+            int i = offset + y * stride;
+            int b = 0;
+            for (int x = 0; x < width; x++) {
+                int argb = data[i++];
+                row[b++] = (byte) (argb >>> 16);
+                row[b++] = (byte) (argb >>> 8);
+                row[b++] = (byte) argb;
+                if (alpha) {
+                    row[b++] = (byte) (argb >>> 24);
+                }
+            }
+        }
+    }
+
+    /**
+     * Filters and compresses a block of rows
+     */
+    private class DeflateBlock extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Pixels pixels;
+        private final int firstRow;
+        private final int lastRow;
+        /*
+         * The checksum and length of the filtered data in this block. These
+         * are set once the block has been compressed.
+         */
+        long adler;
+        long length;
+
+        DeflateBlock(Pixels pixels, int firstRow, int lastRow) {
+            this.pixels = pixels;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        @Override
+        protected byte[] compute() {
+            int rowBytes = pixels.width * pixels.bpp;
+            int filteredRowBytes = rowBytes + 1;
+            byte[] prior = new byte[rowBytes];
+            byte[] raw = new byte[rowBytes];
+            byte[][] scratch = new byte[5][filteredRowBytes];
+
+            /*
+             * Filter enough of the previous rows to use as a dictionary. This
+             * gives the same output as the previous block.
+             */
+            int dictionaryRows = firstRow == 0 ? 0
+                    : Math.min(firstRow, (DICTIONARY_BYTES + filteredRowBytes - 1)
+                            / filteredRowBytes);
+            int startRow = firstRow - dictionaryRows;
+            byte[] filtered = new byte[(lastRow - startRow) * filteredRowBytes];
+            if (startRow > 0) {
+                pixels.getRow(startRow - 1, prior);
+            }
+            for (int y = startRow; y < lastRow; y++) {
+                pixels.getRow(y, raw);
+                filterRow(raw, prior, filtered, (y - startRow) * filteredRowBytes, pixels.bpp,
+                        scratch);
+                byte[] tmp = prior;
+                prior = raw;
+                raw = tmp;
+            }
+
+            int dataStart = dictionaryRows * filteredRowBytes;
+            length = filtered.length - dataStart;
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered, dataStart, (int) length);
+            adler = checksum.getValue();
+
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (filter != Filter.NONE) {
+                    deflater.setStrategy(Deflater.FILTERED);
+                }
+                if (dataStart > 0) {
+                    int dictionaryLength = Math.min(DICTIONARY_BYTES, dataStart);
+                    deflater.setDictionary(filtered, dataStart - dictionaryLength,
+                            dictionaryLength);
+                }
+                deflater.setInput(filtered, dataStart, (int) length);
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1 << 16];
+                if (lastRow == pixels.height) {
+                    /*
+                     * The final block ends the deflate stream
+                     */
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(buffer);
+                        compressed.write(buffer, 0, n);
+                    }
+                } else {
+                    /*
+                     * Other blocks end on a byte boundary so that the next
+                     * block can be appended to them. The first call may only
+                     * apply the strategy, so keep going until all of the input
+                     * has been used and flushed.
+                     */
+                    int n;
+                    do {
+                        n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        compressed.write(buffer, 0, n);
+                    } while (n == buffer.length || !deflater.needsInput());
+                }
+                return compressed.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void filterRow(byte[] raw, byte[] prior, byte[] out, int outOffset, int bpp,
+                byte[][] scratch) {
+            if (filter != Filter.ADAPTIVE) {
+                out[outOffset] = (byte) filter.type;
+                applyFilter(filter.type, raw, prior, out, outOffset + 1, bpp);
+                return;
+            }
+            /*
+             * Use whichever filter gives the smallest sum of absolute values
+             */
+            int best = 0;
+            long bestSum = Long.MAX_VALUE;
+            for (int type = 0; type < 5; type++) {
+                applyFilter(type, raw, prior, scratch[type], 1, bpp);
+                long sum = 0;
+                for (int i = 1; i < scratch[type].length; i++) {
+                    sum += Math.abs(scratch[type][i]);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = type;
+                }
+            }
+            out[outOffset] = (byte) best;
+            System.arraycopy(scratch[best], 1, out, outOffset + 1, raw.length);
+        }
+    }
+
+    private static void applyFilter(int type, byte[] raw, byte[] prior, byte[] out, int offset,
+            int bpp) {
+        int n = raw.length;
+        switch (type) {
+        case 0:
+            System.arraycopy(raw, 0, out, offset, n);
+            break;
+        case 1:
+            for (int i = 0; i < n; i++) {
+                int left = i >= bpp ? raw[i - bpp] & 0xff : 0;
+                out[offset + i] = (byte) (raw[i] - left);
+            }
+            break;
+        case 2:
+            for (int i = 0; i < n; i++) {
+                out[offset + i] = (byte) (raw[i] - prior[i]);
+            }
+            break;
+        case 3:
+            for (int i = 0; i < n; i++) {
+                int left = i >= bpp ? raw[i - bpp] & 0xff : 0;
+                out[offset + i] = (byte) (raw[i] - ((left + (prior[i] & 0xff)) >>> 1));
+            }
+            break;
+        default:
+            for (int i = 0; i < n; i++) {
+                int a = i >= bpp ? raw[i - bpp] & 0xff : 0;
+                int b = prior[i] & 0xff;
+                int c = i >= bpp ? prior[i - bpp] & 0xff : 0;
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                int pred = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                out[offset + i] = (byte) (raw[i] - pred);
+            }
+            break;
+        }
+    }
+}
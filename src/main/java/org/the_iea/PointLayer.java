@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * A layer of points which is drawn over several frames at different opacities,
+ * e.g. a day of data fading out over the following days.
+ * 
+ * The points are drawn once, and only the pixels they cover are kept, as
+ * premultiplied ARGB. Drawing the layer onto a frame is then a single blend
+ * for each covered pixel, however many points there are.
+ * 
+ * The layer is faded as a whole, so points which overlap each other within the
+ * layer are faded together, rather than each one being faded separately.
+ *
+ * @author Guy Griffiths
+ */
+public class PointLayer {
+    /*
+     * Positions of the covered pixels in the image data
+     */
+    private final int[] offsets;
+    /*
+     * Premultiplied ARGB values of the covered pixels
+     */
+    private final int[] pixels;
+
+    /**
+     * @param layer
+     *            - A {@link BufferedImage#TYPE_INT_ARGB} image the same size as
+     *            the frames, transparent everywhere except where points have
+     *            been drawn
+     */
+    public PointLayer(BufferedImage layer) {
+        int[] data = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+        int[] offsets = new int[1024];
+        int[] pixels = new int[1024];
+        int n = 0;
+        for (int i = 0; i < data.length; i++) {
+            int p = data[i];
+            int a = p >>> 24;
+            if (a == 0) {
+                continue;
+            }
+            if (n == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * n);
+                pixels = Arrays.copyOf(pixels, 2 * n);
+            }
+            int r = (((p >> 16) & 0xff) * a + 127) / 255;
+            int g = (((p >> 8) & 0xff) * a + 127) / 255;
+            int b = ((p & 0xff) * a + 127) / 255;
+            offsets[n] = i;
+            pixels[n] = (a << 24) | (r << 16) | (g << 8) | b;
+            n++;
+        }
+        this.offsets = Arrays.copyOf(offsets, n);
+        this.pixels = Arrays.copyOf(pixels, n);
+    }
+
+    /**
+     * @return The approximate number of bytes of memory used by this layer
+     */
+    public long getMemorySize() {
+        return 8L * offsets.length;
+    }
+
+    /**
+     * Blends the layer onto a frame
+     * 
+     * @param frame
+     *            - The {@link BufferedImage#TYPE_INT_ARGB} frame to draw onto.
+     *            This must be the same size as the image the layer was created
+     *            from.
+     * @param alpha
+     *            - The opacity to draw the layer at, from 0 to 255
+     */
+    public void drawOnto(BufferedImage frame, int alpha) {
+        if (alpha <= 0) {
+            return;
+        }
+        int[] data = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < offsets.length; i++) {
+            int s = pixels[i];
+            /*
+             * Scaling a premultiplied colour scales all of its components
+             */
+            int sa = ((s >>> 24) * alpha + 127) / 255;
+            if (sa == 0) {
+                continue;
+            }
+            int sr = (((s >> 16) & 0xff) * alpha + 127) / 255;
+            int sg = (((s >> 8) & 0xff) * alpha + 127) / 255;
+            int sb = ((s & 0xff) * alpha + 127) / 255;
+            int d = data[offsets[i]];
+            int da = d >>> 24;
+            /*
+             * Source-over onto a non-premultiplied frame
+             */
+            int dWeight = (da * (255 - sa) + 127) / 255;
+            int oa = sa + dWeight;
+            int r = (sr * 255 + ((d >> 16) & 0xff) * dWeight + oa / 2) / oa;
+            int g = (sg * 255 + ((d >> 8) & 0xff) * dWeight + oa / 2) / oa;
+            int b = (sb * 255 + (d & 0xff) * dWeight + oa / 2) / oa;
+            data[offsets[i]] = (oa << 24) | (Math.min(255, r) << 16) | (Math.min(255, g) << 8)
+                    | Math.min(255, b);
+        }
+    }
+}
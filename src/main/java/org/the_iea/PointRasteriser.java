@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Draws large numbers of small points straight into the pixels of an image.
+ * 
+ * Each glyph is rendered once for each size, as an anti-aliased coverage mask.
+ * Drawing a point then just blends its colour through the mask, which is much
+ * quicker than filling a shape with {@link java.awt.Graphics2D} for every
+ * point. The mask is looked up once with
+ * {@link PointRasteriser#getSprite(Glyph, int)}, outside the loop over the
+ * points.
+ *
+ * @author Guy Griffiths
+ */
+public class PointRasteriser {
+    /**
+     * The shapes which points can be drawn as
+     */
+    public enum Glyph {
+        CIRCLE, SQUARE
+    }
+
+    /*
+     * Each mask pixel is sampled on a grid of this size in each direction
+     */
+    private static final int SUPERSAMPLING = 4;
+
+    /**
+     * The coverage mask of a glyph at a single size
+     */
+    public static class Sprite {
+        private final int size;
+        private final byte[] coverage;
+
+        private Sprite(int size, byte[] coverage) {
+            this.size = size;
+            this.coverage = coverage;
+        }
+    }
+
+    /*
+     * Coverage masks, shared by all rasterisers, indexed by the ordinal of
+     * the glyph and then by size
+     */
+    private static final Sprite[][] sprites = new Sprite[Glyph.values().length][0];
+
+    private final int[] data;
+    private final int width;
+    private final int height;
+
+    /**
+     * @param image
+     *            - The {@link BufferedImage#TYPE_INT_ARGB} image to draw
+     *            points onto
+     */
+    public PointRasteriser(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            throw new IllegalArgumentException("Points can only be drawn onto ARGB images");
+        }
+        data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        width = image.getWidth();
+        height = image.getHeight();
+    }
+
+    /**
+     * Draws a point. Points are blended onto the image in the order they are
+     * drawn.
+     * 
+     * @param x
+     *            - The x-coordinate of the centre of the point, in pixels
+     * @param y
+     *            - The y-coordinate of the centre of the point, in pixels,
+     *            measured down from the top of the image
+     * @param rgb
+     *            - The colour of the point, as RGB
+     * @param alpha
+     *            - The opacity of the point, from 0 to 255
+     * @param sprite
+     *            - The shape and size of the point, from
+     *            {@link PointRasteriser#getSprite(Glyph, int)}
+     */
+    public void draw(int x, int y, int rgb, int alpha, Sprite sprite) {
+        if (alpha <= 0) {
+            return;
+        }
+        byte[] coverage = sprite.coverage;
+        int size = sprite.size;
+        /*
+         * The same position as Graphics2D.fillOval(x - size / 2, ...)
+         */
+        int left = x - size / 2;
+        int top = y - size / 2;
+        int iStart = Math.max(0, -left);
+        int iEnd = Math.min(size, width - left);
+        int jStart = Math.max(0, -top);
+        int jEnd = Math.min(size, height - top);
+        int sr = (rgb >> 16) & 0xff;
+        int sg = (rgb >> 8) & 0xff;
+        int sb = rgb & 0xff;
+        for (int j = jStart; j < jEnd; j++) {
+            int mask = j * size + iStart;
+            int dst = (top + j) * width + left + iStart;
+            for (int i = iStart; i < iEnd; i++, mask++, dst++) {
+                int sa = ((coverage[mask] & 0xff) * alpha + 127) / 255;
+                if (sa == 0) {
+                    continue;
+                }
+                int d = data[dst];
+                int da = d >>> 24;
+                /*
+                 * Source-over for non-premultiplied colours
+                 */
+                int dWeight = (da * (255 - sa) + 127) / 255;
+                int oa = sa + dWeight;
+                int r = (sr * sa + ((d >> 16) & 0xff) * dWeight + oa / 2) / oa;
+                int g = (sg * sa + ((d >> 8) & 0xff) * dWeight + oa / 2) / oa;
+                int b = (sb * sa + (d & 0xff) * dWeight + oa / 2) / oa;
+                data[dst] = (oa << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    /**
+     * Gets the coverage mask for drawing points of a given shape and size,
+     * creating it the first time it is needed
+     * 
+     * @param glyph
+     *            - The shape of the points
+     * @param size
+     *            - The width and height of the points, in pixels
+     * @return The {@link Sprite} to pass to
+     *         {@link PointRasteriser#draw(int, int, int, int, Sprite)}
+     */
+    public static synchronized Sprite getSprite(Glyph glyph, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Points must be at least one pixel in size");
+        }
+        Sprite[] bySize = sprites[glyph.ordinal()];
+        if (size >= bySize.length) {
+            bySize = Arrays.copyOf(bySize, size + 1);
+            sprites[glyph.ordinal()] = bySize;
+        }
+        if (bySize[size] == null) {
+            bySize[size] = new Sprite(size, createSprite(glyph, size));
+        }
+        return bySize[size];
+    }
+
+    private static byte[] createSprite(Glyph glyph, int size) {
+        byte[] coverage = new byte[size * size];
+        double radius = size / 2.0;
+        int nSamples = SUPERSAMPLING * SUPERSAMPLING;
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                int covered = 0;
+                for (int sj = 0; sj < SUPERSAMPLING; sj++) {
+                    for (int si = 0; si < SUPERSAMPLING; si++) {
+                        double dx = i + (si + 0.5) / SUPERSAMPLING - radius;
+                        double dy = j + (sj + 0.5) / SUPERSAMPLING - radius;
+                        if (glyph == Glyph.SQUARE || dx * dx + dy * dy <= radius * radius) {
+                            covered++;
+                        }
+                    }
+                }
+                coverage[j * size + i] = (byte) ((covered * 255 + nSamples / 2) / nSamples);
+            }
+        }
+        return coverage;
+    }
+}
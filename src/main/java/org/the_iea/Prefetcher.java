@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a known sequence of inputs (e.g. the files for each day) ahead of
+ * time on background threads, so that reading the next input overlaps with
+ * processing the current one.
+ * 
+ * Inputs are returned strictly in order. No more than a fixed number of inputs
+ * are read ahead, and no new reads are started whilst the inputs which have
+ * been read but not yet taken use more than a memory budget.
+ *
+ * @author Guy Griffiths
+ */
+public class Prefetcher<K, V> implements Closeable {
+    public static final int DEFAULT_DEPTH = 4;
+    public static final long DEFAULT_MEMORY_BUDGET = 512L * 1024 * 1024;
+
+    /**
+     * Reads a single input. Implementations must be safe to call from
+     * multiple threads at once.
+     */
+    public interface Loader<K, V> {
+        /**
+         * @param key
+         *            - The input to read (e.g. a file)
+         * @return The data which has been read
+         */
+        public V load(K key) throws IOException;
+
+        /**
+         * @param value
+         *            - Data returned from {@link Loader#load(Object)}
+         * @return The approximate number of bytes of memory used by the data
+         */
+        public long getSize(V value);
+    }
+
+    private final Iterator<K> keys;
+    private final Loader<K, V> loader;
+    private final int depth;
+    private final long memoryBudget;
+    private final ThreadPoolExecutor executor;
+
+    private final ArrayDeque<Future<V>> pending = new ArrayDeque<>();
+    /*
+     * Memory used by inputs which have been read but not yet taken
+     */
+    private final AtomicLong loadedBytes = new AtomicLong(0);
+    private long blockedNanos = 0;
+
+    /**
+     * Creates a {@link Prefetcher} with the default depth and memory budget,
+     * reading on a single thread
+     * 
+     * @param keys
+     *            - The inputs to read, in the order they will be taken
+     * @param loader
+     *            - The {@link Loader} to read each input with
+     */
+    public Prefetcher(List<K> keys, Loader<K, V> loader) {
+        this(keys, loader, DEFAULT_DEPTH, DEFAULT_MEMORY_BUDGET, 1);
+    }
+
+    /**
+     * @param keys
+     *            - The inputs to read, in the order they will be taken
+     * @param loader
+     *            - The {@link Loader} to read each input with
+     * @param depth
+     *            - The maximum number of inputs to read ahead
+     * @param memoryBudget
+     *            - The number of bytes which inputs which have been read
+     *            ahead can use before no more are started. At least one input
+     *            is always read ahead, whatever its size.
+     * @param nThreads
+     *            - The number of threads to read on
+     */
+    public Prefetcher(List<K> keys, Loader<K, V> loader, int depth, long memoryBudget,
+            int nThreads) {
+        if (depth < 1 || nThreads < 1) {
+            throw new IllegalArgumentException("Must read at least one input ahead");
+        }
+        this.keys = keys.iterator();
+        this.loader = loader;
+        this.depth = depth;
+        this.memoryBudget = memoryBudget;
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        fill();
+    }
+
+    /**
+     * @return Whether there are any more inputs to take
+     */
+    public boolean hasNext() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Takes the next input, waiting for it to be read if necessary
+     * 
+     * @return The data read from the next input
+     * @throws IOException
+     *             If there was a problem reading the input
+     */
+    public V next() throws IOException {
+        Future<V> future = pending.poll();
+        if (future == null) {
+            throw new IllegalStateException("No more inputs to read");
+        }
+        long start = System.nanoTime();
+        V value;
+        try {
+            value = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for input");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Problem reading input", cause);
+        } finally {
+            blockedNanos += System.nanoTime() - start;
+        }
+        loadedBytes.addAndGet(-loader.getSize(value));
+        fill();
+        return value;
+    }
+
+    /**
+     * @return The total time spent in {@link Prefetcher#next()} waiting for
+     *         inputs to be read, in milliseconds
+     */
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+    }
+
+    /**
+     * Stops reading ahead. Any reads which are in progress are abandoned.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        pending.clear();
+    }
+
+    /*
+     * Starts reading as many inputs as the depth and memory budget allow
+     */
+    private void fill() {
+        while (keys.hasNext() && pending.size() < depth
+                && (pending.isEmpty() || loadedBytes.get() < memoryBudget)) {
+            final K key = keys.next();
+            pending.add(executor.submit(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    V value = loader.load(key);
+                    loadedBytes.addAndGet(loader.getSize(value));
+                    return value;
+                }
+            }));
+        }
+    }
+}
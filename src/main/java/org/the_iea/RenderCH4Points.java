@@ -35,7 +35,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -45,8 +45,6 @@ import javax.imageio.ImageIO;
 
 import org.apache.commons.collections4.queue.CircularFifoQueue;
 
-import ucar.ma2.Array;
-import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset;
 import uk.ac.rdg.resc.edal.dataset.cdm.NetcdfDatasetAggregator;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
@@ -55,22 +53,37 @@ import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
 import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
 import uk.ac.rdg.resc.edal.grid.RegularGrid;
 import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
-import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.GISUtils;
-import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
 
 public class RenderCH4Points {
-    private static class DataPoint {
-        final float lat;
-        final float lon;
-        final float value;
-
-        public DataPoint(float lat, float lon, float value) {
-            super();
-            this.lat = lat;
-            this.lon = lon;
-            this.value = value;
+    /**
+     * The points from a single file, projected into image pixels and coloured
+     * as they are read
+     */
+    private static class ProjectedPoints {
+        /*
+         * Pixel coordinates, with y measured down from the top of the image
+         */
+        private short[] x = new short[1024];
+        private short[] y = new short[1024];
+        /*
+         * RGB colour of each point
+         */
+        private int[] colours = new int[1024];
+        private int size = 0;
+
+        void add(int px, int py, int colour) {
+            if (size == x.length) {
+                int newLength = 2 * size;
+                x = Arrays.copyOf(x, newLength);
+                y = Arrays.copyOf(y, newLength);
+                colours = Arrays.copyOf(colours, newLength);
+            }
+            x[size] = (short) px;
+            y[size] = (short) py;
+            colours[size] = colour;
+            size++;
         }
     }
 
@@ -78,6 +91,21 @@ public class RenderCH4Points {
     private static Font LABEL_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 40);
 
     public static void main(String[] args) throws EdalException, IOException {
+        /*
+         * Set this to stream the frames as YUV4MPEG2 video to a file (or to
+         * standard output if it is "-") rather than writing PNG files. The
+         * video can be encoded with "ffmpeg -i <file> ..." or piped straight
+         * into "ffmpeg -i - ...".
+         */
+        String videoOutput = null;
+        if ("-".equals(videoOutput)) {
+            /*
+             * Claim standard output before anything is printed, so that
+             * nothing but the video ends up on it
+             */
+            Y4MFrameSink.claimStandardOutput();
+        }
+
         /*
          * The output path for image files
          */
@@ -88,13 +116,15 @@ public class RenderCH4Points {
 
         RegularGrid grid = new RegularGridImpl(-180, -90, 180, 90, GISUtils.defaultGeographicCRS(),
                 background.getWidth(), background.getHeight());
+        GridIndexer indexer = new GridIndexer(grid);
         /*
-         * Create griddedData circular queue containing arrays of DataPoints.
+         * Create griddedData circular queue containing a layer with the
+         * points of each file.
          * 
          * On each timestep we plot the entire contents of the queue, fading out
          * the oldest points.
          */
-        CircularFifoQueue<List<DataPoint>> pointsQ = new CircularFifoQueue<>(FADE_SIZE);
+        CircularFifoQueue<PointLayer> pointsQ = new CircularFifoQueue<>(FADE_SIZE);
 
         /*
          * Get list of all of the files to render
@@ -116,28 +146,24 @@ public class RenderCH4Points {
         DecimalFormat frameNoFormat = new DecimalFormat("0000");
         int frameNo = 0;
         Pattern fnPattern = Pattern.compile("ESACCI-GHG-L2-CH4-GOSAT-OCPR-(.*)-fv7.2.nc");
-        for (File file : files) {
-            try (NetcdfDataset dataset = NetcdfDatasetAggregator
-                    .getDataset(file.getAbsolutePath())) {
-                Variable latVar = dataset.findVariable("latitude");
-                Variable lonVar = dataset.findVariable("longitude");
-                Variable ch4QVar = dataset.findVariable("xch4_quality_flag");
-                Variable ch4Var = dataset.findVariable("xch4");
-
-                Array latVals = latVar.read();
-                Array lonVals = lonVar.read();
-                Array ch4QVals = ch4QVar.read();
-                Array ch4Vals = ch4Var.read();
-                long n = ch4Vals.getSize();
-                List<DataPoint> dataPoints = new ArrayList<>();
-                for (int i = 0; i < n; i++) {
-                    byte qVal = ch4QVals.getByte(i);
-                    if (qVal == 0) {
-                        dataPoints.add(new DataPoint(latVals.getFloat(i), lonVals.getFloat(i),
-                                ch4Vals.getFloat(i)));
-                    }
-                }
-                pointsQ.add(dataPoints);
+        /*
+         * Read and draw the points of upcoming files in the background, whilst
+         * the current frame is being rendered
+         */
+        final PointReader pointReader = new PointReader(indexer, colourScheme,
+                background.getWidth(), background.getHeight());
+        long blockedMillis;
+        /*
+         * Frames are encoded and written in the background. Either the video
+         * sink or the frame sink is used, and the other is null.
+         */
+        try (Y4MFrameSink videoSink = videoOutput == null ? null
+                : new Y4MFrameSink("-".equals(videoOutput) ? null : new File(videoOutput), 25);
+                FrameSink sink = videoOutput == null ? new FrameSink() : null;
+                Prefetcher<File, PointLayer> prefetcher = new Prefetcher<>(files, pointReader,
+                        Prefetcher.DEFAULT_DEPTH, Prefetcher.DEFAULT_MEMORY_BUDGET, 2)) {
+            for (File file : files) {
+                pointsQ.add(prefetcher.next());
 
                 Matcher m = fnPattern.matcher(file.getName());
                 String dateStr = "";
@@ -146,19 +172,145 @@ public class RenderCH4Points {
                     dateStr = dateStr.substring(0, 4) + "-" + dateStr.substring(4, 6) + "-"
                             + dateStr.substring(6);
                 }
-                BufferedImage outImage = render(background, grid, pointsQ, colourScheme, dateStr);
-                ImageIO.write(outImage, "png",
-                        new File(outPath + "frame-" + frameNoFormat.format(frameNo++) + ".png"));
+                BufferedImage outImage = render(background, pointsQ, dateStr);
+                if (videoSink != null) {
+                    videoSink.write(outImage, 1);
+                } else {
+                    sink.write(outImage, new File(
+                            outPath + "frame-" + frameNoFormat.format(frameNo++) + ".png"));
+                }
                 System.out.println("Written data from " + file.getName());
             }
+            blockedMillis = prefetcher.getBlockedMillis();
+        }
+        System.out.println("Time spent waiting for data: " + blockedMillis + "ms");
+        if (videoOutput != null) {
+            System.out.println("Finished writing video.  Now run:\nffmpeg -i '" + videoOutput
+                    + "' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
+        } else {
+            System.out.println("Finished writing frames.  Now run:\nffmpeg -r 25 -i '" + outPath
+                    + "frame-%04d.png' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
+        }
+    }
+
+    /**
+     * Reads the points from a file and draws them into a {@link PointLayer}.
+     * Files can be read from several threads at once.
+     */
+    private static class PointReader implements Prefetcher.Loader<File, PointLayer> {
+        private final GridIndexer indexer;
+        private final ColourScheme colourScheme;
+        private final int width;
+        private final int height;
+
+        /*
+         * Buffers for reading data, reused for every file read on a thread
+         */
+        private final ThreadLocal<float[][]> floatBuffers = new ThreadLocal<float[][]>() {
+            @Override
+            protected float[][] initialValue() {
+                return new float[3][ChunkedVariableReader.DEFAULT_CHUNK_SIZE];
+            }
+        };
+        private final ThreadLocal<byte[]> byteBuffers = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[ChunkedVariableReader.DEFAULT_CHUNK_SIZE];
+            }
+        };
+
+        PointReader(GridIndexer indexer, ColourScheme colourScheme, int width, int height) {
+            this.indexer = indexer;
+            this.colourScheme = colourScheme;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public PointLayer load(File file) throws IOException {
+            float[][] threadBuffers = floatBuffers.get();
+            float[] latVals = threadBuffers[0];
+            float[] lonVals = threadBuffers[1];
+            float[] ch4Vals = threadBuffers[2];
+            byte[] ch4QVals = byteBuffers.get();
+            try (NetcdfDataset dataset = NetcdfDatasetAggregator
+                    .getDataset(file.getAbsolutePath())) {
+                /*
+                 * Read the data in chunks, so that large files don't need to
+                 * be held in memory all at once
+                 */
+                ChunkedVariableReader latReader = new ChunkedVariableReader(
+                        dataset.findVariable("latitude"), dataset);
+                ChunkedVariableReader lonReader = new ChunkedVariableReader(
+                        dataset.findVariable("longitude"), dataset);
+                ChunkedVariableReader ch4QReader = new ChunkedVariableReader(
+                        dataset.findVariable("xch4_quality_flag"), dataset);
+                ChunkedVariableReader ch4Reader = new ChunkedVariableReader(
+                        dataset.findVariable("xch4"), dataset);
+
+                long n = ch4Reader.getSize();
+                ProjectedPoints dataPoints = new ProjectedPoints();
+                for (long start = 0; start < n;) {
+                    int chunk = latReader.readFloats(start, latVals);
+                    lonReader.readFloats(start, lonVals);
+                    ch4QReader.readBytes(start, ch4QVals);
+                    ch4Reader.readFloats(start, ch4Vals);
+                    for (int i = 0; i < chunk; i++) {
+                        if (ch4QVals[i] == 0) {
+                            /*
+                             * Find the pixel and colour of each point once,
+                             * rather than in every frame it is drawn in
+                             */
+                            int cell = indexer.cellIndexOf(lonVals[i], latVals[i]);
+                            if (cell < 0) {
+                                continue;
+                            }
+                            dataPoints.add(cell % indexer.getXSize(),
+                                    indexer.getYSize() - 1 - cell / indexer.getXSize(),
+                                    colourScheme.getColor(ch4Vals[i]).getRGB() & 0xffffff);
+                        }
+                    }
+                    start += chunk;
+                }
+                return rasterise(dataPoints, width, height);
+            }
+        }
+
+        @Override
+        public long getSize(PointLayer layer) {
+            return layer.getMemorySize();
         }
+    }
 
-        System.out.println("Finished writing frames.  Now run:\nffmpeg -r 25 -i '" + outPath
-                + "frame-%04d.png' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
+    /**
+     * Draws the points from a single file into a layer, which can then be
+     * drawn into every frame the points appear in
+     * 
+     * @param points
+     *            - The {@link ProjectedPoints} to draw
+     * @param width
+     *            - The width of the frames
+     * @param height
+     *            - The height of the frames
+     * @return The {@link PointLayer}
+     */
+    private static PointLayer rasterise(ProjectedPoints points, int width, int height) {
+        BufferedImage layer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        /*
+         * Stamp the points straight into the image, rather than filling a
+         * shape for each one
+         */
+        PointRasteriser rasteriser = new PointRasteriser(layer);
+        PointRasteriser.Sprite sprite = PointRasteriser.getSprite(PointRasteriser.Glyph.CIRCLE,
+                11);
+        for (int p = 0; p < points.size; p++) {
+            rasteriser.draw(points.x[p], points.y[p], points.colours[p], 255, sprite);
+        }
+        return new PointLayer(layer);
     }
 
-    private static BufferedImage render(BufferedImage background, RegularGrid grid,
-            CircularFifoQueue<List<DataPoint>> queue, ColourScheme cs, String dateStr) {
+    private static BufferedImage render(BufferedImage background,
+            CircularFifoQueue<PointLayer> queue, String dateStr) {
         int width = background.getWidth();
         int height = background.getHeight();
         BufferedImage ret = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
@@ -171,17 +323,15 @@ public class RenderCH4Points {
         g.setColor(Color.white);
         g.setFont(LABEL_FONT);
         g.drawString(dateStr, width / 2 - stringOffsetX, height / 5 - stringOffsetY);
+        g.dispose();
+
+        /*
+         * Each day's points never change, only how faded they are
+         */
         int i = 0;
-        int size = 11;
-        for (List<DataPoint> points : queue) {
+        for (PointLayer layer : queue) {
             int opacity = (int) (255 * ((double) ++i / queue.size()));
-            for (DataPoint point : points) {
-                GridCoordinates2D coords = grid
-                        .findIndexOf(new HorizontalPosition(point.lon, point.lat));
-                Color c = cs.getColor(point.value);
-                g.setColor(new Color(c.getRed(), c.getGreen(), c.getBlue(), opacity));
-                g.fillOval(coords.getX() - size / 2, height - 1 - coords.getY() - size / 2, size, size);
-            }
+            layer.drawOnto(ret, opacity);
         }
 
         return ret;
@@ -32,7 +32,9 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -45,7 +47,6 @@ import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
-import uk.ac.rdg.resc.edal.graphics.style.Drawable;
 import uk.ac.rdg.resc.edal.graphics.style.MapImage;
 import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
 import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
@@ -134,50 +135,85 @@ public class RenderClouds {
         GridVariableMetadata metadata = ds.getVariableMetadata("cth_asc");
         TimeAxis timeAxis = metadata.getTemporalDomain();
 
-        for (Entry<String, Extent<Float>> entry : var2Range.entrySet()) {
-            String var = entry.getKey();
-            Extent<Float> range = entry.getValue();
-
-            /*
-             * The output path for image files
-             */
-            String outPath = "/home/guy/Data/s4c/output-clouds/" + var + "/";
-            File outPathFile = new File(outPath);
-            if (!outPathFile.exists()) {
-                outPathFile.mkdirs();
-            }
+        /*
+         * The number of frames to read data for ahead of the one being
+         * written, the memory they can use, and the number of threads to read
+         * them on. The dataset is shared by every frame, and the NetCDF files
+         * underneath it can't safely be read from more than one thread at
+         * once, so frames are read one at a time. Reading still overlaps with
+         * encoding and writing the previous frames.
+         */
+        int prefetchDepth = Prefetcher.DEFAULT_DEPTH;
+        long prefetchMemory = Prefetcher.DEFAULT_MEMORY_BUDGET;
+        int prefetchThreads = 1;
+        long blockedMillis = 0;
+        /*
+         * Frames are encoded and written in the background. Frames which have
+         * been written are recorded, so that if the run is stopped, it can be
+         * restarted without rendering them again.
+         */
+        try (FrameSink sink = new FrameSink();
+                FrameCheckpoint checkpoint = new FrameCheckpoint(
+                        new File(outDir + "checkpoint.txt"))) {
+            for (Entry<String, Extent<Float>> entry : var2Range.entrySet()) {
+                String var = entry.getKey();
+                Extent<Float> range = entry.getValue();
 
-            MapImage mapImage = new MapImage();
-            /*-
-             * Create using a simple grey palette. This can have a palette
-             * applied to it with:
-             * 
-             * convert grey_image.png palette-<palettename>.png -clut output.png
-             * 
-             * That way we only need to generate the images once for each
-             * variable, and subsequent palette application can be done
-             * without having to re-read the original data.
-             */
-            SegmentColourScheme colourScheme = new SegmentColourScheme(new ScaleRange(range, false),
-                    null, null, new Color(0, true), "#ffffff:#000000", 250);
-            Drawable rasterLayer = new RasterLayer(var, colourScheme);
-            mapImage.getLayers().add(rasterLayer);
+                /*
+                 * The output path for image files
+                 */
+                String outPath = "/home/guy/Data/s4c/output-clouds/" + var + "/";
+                File outPathFile = new File(outPath);
+                if (!outPathFile.exists()) {
+                    outPathFile.mkdirs();
+                }
 
-            for (DateTime time : timeAxis.getCoordinateValues()) {
-                PlottingDomainParams params = new PlottingDomainParams(width, height,
-                        BoundingBoxImpl.global(), null, null, null, null, time);
-                BufferedImage dataImage = mapImage.drawImage(params, catalogue);
+                /*-
+                 * Create using a simple grey palette. This can have a palette
+                 * applied to it with:
+                 * 
+                 * convert grey_image.png palette-<palettename>.png -clut output.png
+                 * 
+                 * That way we only need to generate the images once for each
+                 * variable, and subsequent palette application can be done
+                 * without having to re-read the original data.
+                 */
+                SegmentColourScheme colourScheme = new SegmentColourScheme(
+                        new ScaleRange(range, false), null, null, new Color(0, true),
+                        "#ffffff:#000000", 250);
 
+                List<DateTime> times = new ArrayList<>();
+                for (DateTime time : timeAxis.getCoordinateValues()) {
+                    String step = var + "/" + TimeUtils.dateTimeToISO8601(time);
+                    if (checkpoint.getCompleted(step) == null) {
+                        times.add(time);
+                    }
+                }
                 /*
-                 * Write frames with datetime. This allows for easier
-                 * recreation, and we can use the "-pattern_type glob" argument
-                 * with ffmpeg to generate the video
+                 * Read and draw the data for upcoming times in the background,
+                 * whilst the current frame is being written
                  */
-                ImageIO.write(dataImage, "png",
-                        new File(outPath + "frame-" + TimeUtils.dateTimeToISO8601(time) + ".png"));
-            }
+                try (Prefetcher<DateTime, BufferedImage> prefetcher = new Prefetcher<>(times,
+                        new DataImageLoader(var, colourScheme, catalogue, width, height),
+                        prefetchDepth, prefetchMemory, prefetchThreads)) {
+                    for (DateTime time : times) {
+                        String step = var + "/" + TimeUtils.dateTimeToISO8601(time);
+                        BufferedImage dataImage = prefetcher.next();
 
+                        /*
+                         * Write frames with datetime. This allows for easier
+                         * recreation, and we can use the "-pattern_type glob"
+                         * argument with ffmpeg to generate the video
+                         */
+                        sink.write(dataImage, checkpoint.startStep(step, 0, 1).frame(0, 1),
+                                new File(outPath + "frame-" + TimeUtils.dateTimeToISO8601(time)
+                                        + ".png"));
+                    }
+                    blockedMillis += prefetcher.getBlockedMillis();
+                }
+            }
         }
+        System.out.println("Time spent waiting for data: " + blockedMillis + "ms");
         System.out.println(
                 "Finished writing frames.  Now run:\nffmpeg -r 25 -pattern_type glob -i '" + outDir
                         + "/<variable>/*.png' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
@@ -194,4 +230,44 @@ public class RenderClouds {
          * to add a background image.
          */
     }
+
+    /**
+     * Reads the data for a single time and draws it. Each call reads from the
+     * shared dataset, so this must not be used from more than one thread at
+     * once.
+     */
+    private static class DataImageLoader implements Prefetcher.Loader<DateTime, BufferedImage> {
+        private final String var;
+        private final SegmentColourScheme colourScheme;
+        private final SimpleFeatureCatalogue<GriddedDataset> catalogue;
+        private final int width;
+        private final int height;
+
+        DataImageLoader(String var, SegmentColourScheme colourScheme,
+                SimpleFeatureCatalogue<GriddedDataset> catalogue, int width, int height) {
+            this.var = var;
+            this.colourScheme = colourScheme;
+            this.catalogue = catalogue;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public BufferedImage load(DateTime time) {
+            /*
+             * A new image generator for each time means that nothing is kept
+             * between frames
+             */
+            MapImage mapImage = new MapImage();
+            mapImage.getLayers().add(new RasterLayer(var, colourScheme));
+            PlottingDomainParams params = new PlottingDomainParams(width, height,
+                    BoundingBoxImpl.global(), null, null, null, null, time);
+            return mapImage.drawImage(params, catalogue);
+        }
+
+        @Override
+        public long getSize(BufferedImage image) {
+            return 4L * image.getWidth() * image.getHeight();
+        }
+    }
 }
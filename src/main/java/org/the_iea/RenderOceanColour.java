@@ -81,6 +81,21 @@ import uk.ac.rdg.resc.edal.util.TimeUtils;
  */
 public class RenderOceanColour {
     public static void main(String[] args) throws EdalException, IOException {
+        /*
+         * Set this to stream the frames as YUV4MPEG2 video to a file (or to
+         * standard output if it is "-") rather than writing PNG files. The
+         * video can be encoded with "ffmpeg -i <file> ..." or piped straight
+         * into "ffmpeg -i - ...".
+         */
+        String videoOutput = null;
+        if ("-".equals(videoOutput)) {
+            /*
+             * Claim standard output before anything is printed, so that
+             * nothing but the video ends up on it
+             */
+            Y4MFrameSink.claimStandardOutput();
+        }
+
         /*
          * Data paths
          */
@@ -114,6 +129,10 @@ public class RenderOceanColour {
 
         int width = background.getWidth();
         int height = background.getHeight();
+        /*
+         * The background is the same for every frame, so only convert it once
+         */
+        BaseLayer baseLayer = new BaseLayer(background);
 
         /*
          * Create grid dataset for ocean colour data
@@ -184,6 +203,12 @@ public class RenderOceanColour {
          * However, we may want a different deltaT, since in principal Argo
          * floats are not on a regular time axis.
          */
+        Y4MFrameSink videoSink = videoOutput == null ? null
+                : new Y4MFrameSink("-".equals(videoOutput) ? null : new File(videoOutput), 25);
+        /*
+         * Frames are encoded and written in the background
+         */
+        FrameSink sink = videoOutput == null ? new FrameSink() : null;
         while (currentTime.isBefore(timeAxis.getCoordinateBounds(timeAxis.size() - 1).getHigh())) {
             DateTime time = timeAxis.getCoordinateValue(timeAxis.findIndexOf(currentTime));
             /*
@@ -204,21 +229,30 @@ public class RenderOceanColour {
             BufferedImage dataImage = mapImage.drawImage(params, catalogue);
             currentTime = currentTime.plus(deltaT);
 
-            BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            BufferedImage output = baseLayer.newFrame();
             Graphics2D g = output.createGraphics();
-            g.drawImage(background, 0, 0, null);
             g.drawImage(dataImage, 0, 0, null);
             /*
              * Write frames with datetime. This allows for easier recreation of
              * individual frames, and we can use the "-pattern_type glob"
              * argument with ffmpeg to generate the video
              */
-            ImageIO.write(output, "png", new File(
-                    outDir + "/frame-" + TimeUtils.dateTimeToISO8601(currentTime) + ".png"));
+            if (videoSink != null) {
+                videoSink.write(output, 1);
+            } else {
+                sink.write(output, new File(
+                        outDir + "/frame-" + TimeUtils.dateTimeToISO8601(currentTime) + ".png"));
+            }
+        }
+        if (videoSink != null) {
+            videoSink.close();
+            System.out.println("Finished writing video.  Now run:\nffmpeg -i '" + videoOutput
+                    + "' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
+        } else {
+            sink.close();
+            System.out.println(
+                    "Finished writing frames.  Now run:\nffmpeg -r 25 -pattern_type glob -i '"
+                            + outDir + "*.png' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
         }
-
-        System.out
-                .println("Finished writing frames.  Now run:\nffmpeg -r 25 -pattern_type glob -i '"
-                        + outDir + "*.png' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
     }
 }
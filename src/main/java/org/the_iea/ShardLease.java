@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A lease on a shard of work, held through files in a directory shared by all
+ * of the processes doing the work.
+ * 
+ * A process holds a lease while the lease file exists and is regularly
+ * touched. If a process dies, its lease expires after a timeout and another
+ * process can take the shard over. A finished shard is marked with a separate
+ * file, so it is never taken again.
+ * 
+ * Taking over an expired lease is not strictly atomic, so two processes can
+ * very occasionally end up working on the same shard. This is harmless as long
+ * as the work is deterministic. Each lease file records which process holds
+ * it, and a process which has lost its lease to another stops renewing it and
+ * leaves it alone when it is closed.
+ *
+ * @author Guy Griffiths
+ */
+public class ShardLease implements Closeable {
+    private final File leaseFile;
+    private final File doneFile;
+    private final String owner;
+    private final ScheduledExecutorService heartbeat;
+
+    private ShardLease(File leaseFile, File doneFile, String owner, long timeoutMillis) {
+        this.leaseFile = leaseFile;
+        this.doneFile = doneFile;
+        this.owner = owner;
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "lease-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(1, timeoutMillis / 4);
+        heartbeat.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (isOwned()) {
+                    ShardLease.this.leaseFile.setLastModified(System.currentTimeMillis());
+                } else {
+                    /*
+                     * Another process has taken the lease over. Renewing it
+                     * would stop that process's lease from ever expiring.
+                     */
+                    heartbeat.shutdown();
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tries to take the lease on a shard
+     * 
+     * @param dir
+     *            - The shared directory to keep lease files in
+     * @param name
+     *            - The name of the shard
+     * @param timeoutMillis
+     *            - How long a lease can go without being renewed before it
+     *            expires
+     * @return The {@link ShardLease}, or <code>null</code> if the shard has
+     *         been finished or another process holds the lease
+     */
+    public static ShardLease acquire(File dir, String name, long timeoutMillis)
+            throws IOException {
+        File leaseFile = new File(dir, name + ".lease");
+        File doneFile = new File(dir, name + ".done");
+        if (isComplete(dir, name)) {
+            return null;
+        }
+        String owner = ManagementFactory.getRuntimeMXBean().getName() + " " + UUID.randomUUID();
+        byte[] ownerBytes = owner.getBytes(StandardCharsets.UTF_8);
+        try {
+            Files.write(Files.createFile(leaseFile.toPath()), ownerBytes);
+        } catch (FileAlreadyExistsException e) {
+            long age = System.currentTimeMillis() - leaseFile.lastModified();
+            if (age < timeoutMillis) {
+                return null;
+            }
+            /*
+             * The lease has expired. Replace it with ours, then check that no
+             * other process replaced it at the same time.
+             */
+            File tmpFile = new File(dir, name + ".lease." + UUID.randomUUID());
+            Files.write(tmpFile.toPath(), ownerBytes);
+            Files.move(tmpFile.toPath(), leaseFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            if (!isOwner(leaseFile, owner)) {
+                return null;
+            }
+        }
+        if (doneFile.exists()) {
+            /*
+             * Finished between checking and taking the lease
+             */
+            leaseFile.delete();
+            return null;
+        }
+        return new ShardLease(leaseFile, doneFile, owner, timeoutMillis);
+    }
+
+    /**
+     * @param dir
+     *            - The shared directory lease files are kept in
+     * @param name
+     *            - The name of the shard
+     * @return Whether the shard has been marked as finished
+     */
+    public static boolean isComplete(File dir, String name) {
+        return new File(dir, name + ".done").exists();
+    }
+
+    /**
+     * @return Whether this process still holds the lease. This is
+     *         <code>false</code> if the lease expired and another process took
+     *         the shard over.
+     */
+    public boolean isOwned() {
+        return isOwner(leaseFile, owner);
+    }
+
+    private static boolean isOwner(File leaseFile, String owner) {
+        try {
+            return owner.equals(
+                    new String(Files.readAllBytes(leaseFile.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Marks the shard as finished, so that no other process will take it
+     */
+    public void complete() throws IOException {
+        Files.write(doneFile.toPath(), new byte[0]);
+    }
+
+    /**
+     * Releases the lease, if this process still holds it. If the shard has not
+     * been completed, another process can then take it straight away.
+     */
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+        if (isOwned()) {
+            leaseFile.delete();
+        }
+    }
+}
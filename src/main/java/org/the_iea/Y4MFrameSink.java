@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2018 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package org.the_iea;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams frames as uncompressed YUV4MPEG2 video, which can be read directly by
+ * ffmpeg (or piped into it). This avoids encoding and decoding an intermediate
+ * PNG for every frame.
+ * 
+ * Frames are converted from RGB to YUV 4:2:0 (BT.601, limited range, the same
+ * as ffmpeg uses when converting PNGs) and written on a background thread, in
+ * the order they are given. Only a limited number of frames can be waiting at
+ * once, after which {@link Y4MFrameSink#write(BufferedImage, int)} blocks.
+ * 
+ * All frames must be the same size. Transparency is ignored.
+ *
+ * @author Guy Griffiths
+ */
+public class Y4MFrameSink implements Closeable {
+    private static OutputStream standardOutput = null;
+
+    private final OutputStream out;
+    private final int frameRate;
+    private final ExecutorService writer;
+    private final Semaphore slots;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private int width = -1;
+    private int height = -1;
+
+    /**
+     * @param file
+     *            - The file to write to, or <code>null</code> to write to
+     *            the stream returned by
+     *            {@link Y4MFrameSink#claimStandardOutput()}
+     * @param frameRate
+     *            - The frame rate of the video, in frames per second
+     */
+    public Y4MFrameSink(File file, int frameRate) throws IOException {
+        this(open(file), frameRate, 8);
+    }
+
+    private static OutputStream open(File file) throws IOException {
+        if (file != null) {
+            return new FileOutputStream(file);
+        }
+        return claimStandardOutput();
+    }
+
+    /**
+     * Takes over standard output for writing video, and redirects
+     * {@link System#out} to standard error so that progress messages can't end
+     * up in the video. This should be called at the very start of a program
+     * which streams video to standard output, before anything is printed.
+     * Calling it again returns the same stream.
+     * 
+     * @return The original standard output stream
+     */
+    public static synchronized OutputStream claimStandardOutput() {
+        if (standardOutput == null) {
+            standardOutput = System.out;
+            System.setOut(System.err);
+        }
+        return standardOutput;
+    }
+
+    /**
+     * @param out
+     *            - The {@link OutputStream} to write to. This is closed when
+     *            the sink is closed.
+     * @param frameRate
+     *            - The frame rate of the video, in frames per second
+     * @param queueSize
+     *            - The maximum number of frames which can be waiting to be
+     *            written at once
+     */
+    public Y4MFrameSink(OutputStream out, int frameRate, int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Must have at least one queue slot");
+        }
+        this.out = new BufferedOutputStream(out, 1 << 20);
+        this.frameRate = frameRate;
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "y4m-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        slots = new Semaphore(queueSize);
+    }
+
+    /**
+     * Queues a frame to be written
+     * 
+     * @param image
+     *            - The image to write. This must not be modified after it has
+     *            been passed to this method.
+     * @param repeats
+     *            - The number of consecutive output frames to show the image
+     *            for
+     * @throws IOException
+     *             If a previously queued frame could not be written
+     */
+    public void write(final BufferedImage image, final int repeats) throws IOException {
+        checkFailure();
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting to write frame");
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        writeFrame(image, repeats);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    private void writeFrame(BufferedImage image, int repeats) throws IOException {
+        if (width < 0) {
+            width = image.getWidth();
+            height = image.getHeight();
+            out.write(("YUV4MPEG2 W" + width + " H" + height + " F" + frameRate
+                    + ":1 Ip A1:1 C420jpeg\n").getBytes("US-ASCII"));
+        } else if (image.getWidth() != width || image.getHeight() != height) {
+            throw new IOException("All frames must be " + width + "x" + height);
+        }
+        byte[] yuv = toYuv420(image);
+        byte[] frameHeader = "FRAME\n".getBytes("US-ASCII");
+        for (int i = 0; i < repeats; i++) {
+            out.write(frameHeader);
+            out.write(yuv);
+        }
+    }
+
+    private static byte[] toYuv420(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB
+                && image.getType() != BufferedImage.TYPE_INT_RGB) {
+            BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = converted.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            image = converted;
+        }
+        WritableRaster raster = image.getRaster();
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        int[] data = buffer.getData();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        int offset = buffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int cw = (w + 1) / 2;
+        int ch = (h + 1) / 2;
+        byte[] yuv = new byte[w * h + 2 * cw * ch];
+        int uStart = w * h;
+        int vStart = uStart + cw * ch;
+
+        for (int y = 0; y < h; y++) {
+            int row = offset + y * stride;
+            for (int x = 0; x < w; x++) {
+                int rgb = data[row + x];
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                yuv[y * w + x] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+            }
+        }
+
+        /*
+         * Chroma is calculated from the mean colour of each 2x2 block
+         */
+        for (int cy = 0; cy < ch; cy++) {
+            for (int cx = 0; cx < cw; cx++) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                int n = 0;
+                for (int y = 2 * cy; y < Math.min(2 * cy + 2, h); y++) {
+                    for (int x = 2 * cx; x < Math.min(2 * cx + 2, w); x++) {
+                        int rgb = data[offset + y * stride + x];
+                        r += (rgb >> 16) & 0xff;
+                        g += (rgb >> 8) & 0xff;
+                        b += rgb & 0xff;
+                        n++;
+                    }
+                }
+                r /= n;
+                g /= n;
+                b /= n;
+                yuv[uStart + cy * cw + cx] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8)
+                        + 128);
+                yuv[vStart + cy * cw + cx] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8)
+                        + 128);
+            }
+        }
+        return yuv;
+    }
+
+    /**
+     * Waits for all queued frames to be written, and closes the output
+     * 
+     * @throws IOException
+     *             If any frame could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                /*
+                 * Keep waiting until everything has been written
+                 */
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for frames to be written");
+        }
+        out.close();
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException("Problem writing frame", e);
+        }
+    }
+}